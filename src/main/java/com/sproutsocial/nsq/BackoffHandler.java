@@ -1,32 +1,51 @@
 package com.sproutsocial.nsq;
 
+import net.jcip.annotations.GuardedBy;
 import net.jcip.annotations.ThreadSafe;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Backs off when the handler throws, entirely through RDY so no handler thread ever sleeps.
+ * After a failure RDY drops to 0 for the current delay, then a single message is let through (RDY 1).
+ * Each failure doubles the delay up to the max, each success halves it and full speed resumes once it drops below the initial delay.
+ * Messages that were already in flight when backoff started are held (and touched) for the rest of the delay, then handled,
+ * so they do not spend an attempt on a requeue.
+ * By default the whole subscription backs off, with per connection scope only the nsqd whose messages failed is slowed down.
+ */
 @ThreadSafe
 public class BackoffHandler implements MessageHandler {
 
-    private volatile boolean isBackoff = false;
-    private Subscription subscription;
     private final MessageHandler handler;
     private final int initDelay;
     private final int maxDelay;
+    private final boolean isPerConnection;
 
-    private long lastAttempt;
-    private int delay;
-    private int failCount;
-    private int fullSpeedMaxInFlight;
+    @GuardedBy("this") private Subscription subscription;
+    @GuardedBy("this") private final Map<Object, Backoff> backoffs = new HashMap<Object, Backoff>();
+    //serializes applying limits, taken without holding this so the subscription lock is never taken inside ours
+    private final Object applyLock = new Object();
 
     private static final int DEFAULT_INIT_DELAY_MILLIS = 1000;
     private static final int DEFAULT_MAX_DELAY_MILLIS = 60000;
 
     private static final Logger logger = LoggerFactory.getLogger(BackoffHandler.class);
 
-    public BackoffHandler(MessageHandler handler, int initDelayMillis, int maxDelayMillis) {
+    /**
+     * @param isPerConnection back off each nsqd connection separately instead of the whole subscription
+     */
+    public BackoffHandler(MessageHandler handler, int initDelayMillis, int maxDelayMillis, boolean isPerConnection) {
         this.handler = handler;
         this.initDelay = initDelayMillis;
         this.maxDelay = maxDelayMillis;
+        this.isPerConnection = isPerConnection;
+    }
+
+    public BackoffHandler(MessageHandler handler, int initDelayMillis, int maxDelayMillis) {
+        this(handler, initDelayMillis, maxDelayMillis, false);
     }
 
     public BackoffHandler(MessageHandler handler) {
@@ -35,14 +54,25 @@ public class BackoffHandler implements MessageHandler {
 
     @Override
     public void accept(Message msg) {
-        boolean backoff = isBackoff;
-        if (backoff) {
-            attemptDuringBackoff();
+        Backoff backoff;
+        Subscription sub;
+        long remaining = 0;
+        synchronized (this) {
+            sub = subscription;
+            backoff = backoffs.get(scopeKey(msg));
+            if (backoff != null) {
+                remaining = backoff.resumeTime - Util.clock();
+            }
+        }
+        if (remaining > 0) {
+            //delivered before RDY went to 0
+            hold(msg, sub, remaining);
+            return;
         }
         try {
             handler.accept(msg);
-            if (backoff) {
-                successDuringBackoff();
+            if (backoff != null) {
+                success(backoff);
             }
             msg.finish();
         }
@@ -51,59 +81,150 @@ public class BackoffHandler implements MessageHandler {
         }
     }
 
+    /**
+     * Hands the message back to accept once the delay is over, touching it at least every half msgTimeout
+     * so nsqd does not time it out. A requeue would spend one of its attempts without ever calling the handler.
+     */
+    private void hold(final Message msg, final Subscription sub, long remaining) {
+        int touchInterval = msg instanceof NSQMessage ? ((NSQMessage) msg).getConnection().getMsgTimeout() / 2 : Integer.MAX_VALUE;
+        sub.getClient().schedule(new Runnable() {
+            public void run() {
+                if (sub.isStopping) {
+                    return; //nsqd requeues it when the connection closes
+                }
+                msg.touch();
+                sub.getClient().getExecutor().execute(new Runnable() {
+                    public void run() {
+                        accept(msg);
+                    }
+                });
+            }
+        }, (int) Math.max(1, Math.min(remaining, touchInterval)));
+    }
+
     synchronized void setSubscription(Subscription subscription) {
         this.subscription = subscription;
     }
 
-    private synchronized void failure(Message msg, Exception e) {
-        isBackoff = true;
-        failCount++;
-        logger.error("message error. failures:{}", failCount, e);
-        if (failCount == 1) {
-            delay = initDelay;
-            fullSpeedMaxInFlight = subscription.getMaxInFlight();
-            lastAttempt = Util.clock();
-        }
-        else {
-            delay = Math.min(delay * 2, maxDelay);
-            pauseSubscription();
+    @GuardedBy("this")
+    private Object scopeKey(Message msg) {
+        return isPerConnection && msg instanceof NSQMessage ? ((NSQMessage) msg).getConnection() : subscription;
+    }
+
+    private void failure(Message msg, Exception e) {
+        Backoff backoff;
+        synchronized (this) {
+            Object key = scopeKey(msg);
+            backoff = backoffs.get(key);
+            if (backoff == null) {
+                backoff = new Backoff(key instanceof SubConnection ? (SubConnection) key : null);
+                backoffs.put(key, backoff);
+                backoff.delay = initDelay;
+            }
+            else {
+                backoff.delay = Math.min(backoff.delay * 2, maxDelay);
+            }
+            backoff.failCount++;
+            logger.error("message error. failures:{} backoff:{}", backoff.failCount, backoff.delay, e);
+            pause(backoff);
         }
+        applyLimit(backoff);
         msg.requeue();
     }
 
-    private synchronized void pauseSubscription() {
-        subscription.setMaxInFlight(0);
-        subscription.getClient().schedule(new Runnable() {
+    private void success(Backoff backoff) {
+        synchronized (this) {
+            if (backoffs.get(backoff.key()) != backoff) {
+                return; //already reset by another success
+            }
+            backoff.delay /= 2;
+            if (backoff.delay < initDelay) {
+                logger.info("backoff complete, resuming full speed");
+                backoffs.remove(backoff.key());
+                Util.cancel(backoff.resumeTask);
+            }
+            else {
+                pause(backoff);
+            }
+        }
+        applyLimit(backoff);
+    }
+
+    /**
+     * RDY 0 for the current delay, then RDY 1 to try a single message.
+     */
+    @GuardedBy("this")
+    private void pause(final Backoff backoff) {
+        Util.cancel(backoff.resumeTask);
+        backoff.limit = 0;
+        backoff.resumeTime = Util.clock() + backoff.delay;
+        backoff.resumeTask = subscription.getClient().schedule(new Runnable() {
             public void run() {
-                if (!subscription.isStopping) {
-                    subscription.setMaxInFlight(1);
-                }
+                resume(backoff);
             }
-        }, delay);
+        }, backoff.delay);
     }
 
-    private synchronized void attemptDuringBackoff() {
-        long now = Util.clock();
-        int waited = (int) (now - lastAttempt);
-        if (waited < delay) {
-            Util.sleepQuietly(delay - waited);
-            lastAttempt = Util.clock();
+    private void resume(Backoff backoff) {
+        Subscription sub;
+        synchronized (this) {
+            if (backoffs.get(backoff.key()) != backoff || subscription.isStopping) {
+                return;
+            }
+            sub = subscription;
         }
-        else {
-            lastAttempt = now;
+        boolean isClosed = backoff.con != null && !sub.getConnections().containsValue(backoff.con);
+        synchronized (this) {
+            if (backoffs.get(backoff.key()) != backoff) {
+                return;
+            }
+            if (isClosed) {
+                backoffs.remove(backoff.key()); //connection closed, a reconnect starts at full speed
+                return;
+            }
+            backoff.limit = 1;
         }
+        applyLimit(backoff);
     }
 
-    private synchronized void successDuringBackoff() {
-        delay /= 2;
-        if (delay < initDelay) {
-            isBackoff = false;
-            failCount = 0;
-            delay = 0;
-            subscription.setMaxInFlight(fullSpeedMaxInFlight);
+    /**
+     * Sets the RDY cap for the backoff's scope to whatever the current state asks for, called without holding this.
+     * Reading the state inside applyLock means the last call always applies the latest limit, whatever order
+     * concurrent callers get here in.
+     */
+    private void applyLimit(Backoff backoff) {
+        synchronized (applyLock) {
+            int limit;
+            Subscription sub;
+            synchronized (this) {
+                Backoff current = backoffs.get(backoff.key());
+                limit = current != null ? current.limit : -1;
+                sub = subscription;
+            }
+            if (backoff.con != null) {
+                backoff.con.setBackoffLimit(limit);
+            }
+            else {
+                sub.setBackoffLimit(limit);
+            }
+        }
+    }
+
+    private class Backoff {
+        private final SubConnection con; //null when the whole subscription backs off
+        private int delay;
+        private int failCount;
+        private int limit;
+        private long resumeTime;
+        private HashedWheelTimer.Timeout resumeTask;
+
+        Backoff(SubConnection con) {
+            this.con = con;
         }
-        else {
-            pauseSubscription();
+
+        @GuardedBy("BackoffHandler.this")
+        Object key() {
+            return con != null ? con : subscription;
         }
     }
 
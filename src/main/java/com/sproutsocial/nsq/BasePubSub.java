@@ -3,14 +3,13 @@ package com.sproutsocial.nsq;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.ScheduledFuture;
 
 class BasePubSub {
 
     protected Config config = new Config();
     protected volatile boolean isStopping = false;
     protected final Client client;
-    private final List<ScheduledFuture> tasks = Collections.synchronizedList(new ArrayList<ScheduledFuture>());
+    private final List<HashedWheelTimer.Timeout> tasks = Collections.synchronizedList(new ArrayList<HashedWheelTimer.Timeout>());
 
     protected BasePubSub(Client client) {
         this.client = client;
@@ -41,8 +40,8 @@ class BasePubSub {
 
     protected void cancelTasks() {
         synchronized (tasks) {
-            for (ScheduledFuture task : tasks) {
-                task.cancel(false);
+            for (HashedWheelTimer.Timeout task : tasks) {
+                task.cancel();
             }
             tasks.clear();
         }
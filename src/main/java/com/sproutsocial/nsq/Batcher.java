@@ -5,8 +5,6 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
 
 import static com.sproutsocial.nsq.Util.checkArgument;
 import static com.sproutsocial.nsq.Util.checkNotNull;
@@ -17,7 +15,8 @@ class Batcher {
     private final String topic;
     private final int maxSize;
     private final int maxDelayMillis;
-    private final ScheduledExecutorService executor;
+    private final HashedWheelTimer timer;
+    private final HashedWheelTimer.Timeout sendTask;
     private int size;
     private List<byte[]> batch = new ArrayList<byte[]>();
     private long sendTime;
@@ -29,7 +28,13 @@ class Batcher {
         this.topic = topic;
         this.maxSize = maxSizeBytes;
         this.maxDelayMillis = maxDelayMillis;
-        this.executor = publisher.getBatchExecutor();
+        this.timer = publisher.getClient().getTimer();
+        //one reusable timeout per batcher, run on the publisher's batch thread
+        this.sendTask = timer.newTimeout(new Runnable() {
+            public void run() {
+                sendDelayedBatch();
+            }
+        }, publisher.getBatchExecutor());
         checkNotNull(publisher);
         checkNotNull(topic);
         checkArgument(maxDelayMillis > 5);
@@ -44,11 +49,7 @@ class Batcher {
             size += msg.length;
             if (batch.size() == 1) {
                 sendTime = Util.clock() + maxDelayMillis;
-                executor.schedule(new Runnable() {
-                    public void run() {
-                        sendDelayedBatch();
-                    }
-                }, maxDelayMillis, TimeUnit.MILLISECONDS);
+                timer.schedule(sendTask, maxDelayMillis); //if still pending from the last batch it reschedules itself
             }
             else if (size >= maxSize) {
                 sendNow = true;
@@ -69,11 +70,7 @@ class Batcher {
                         sendNow = true;
                     }
                     else {
-                        executor.schedule(new Runnable() {
-                            public void run() {
-                                sendDelayedBatch();
-                            }
-                        }, delay, TimeUnit.MILLISECONDS);
+                        timer.schedule(sendTask, delay);
                     }
                 }
             }
@@ -0,0 +1,57 @@
+package com.sproutsocial.nsq;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.sproutsocial.nsq.Util.checkNotNull;
+
+/**
+ * Picks a retry policy by exception type, e.g. retry timeouts with backoff but give up on parse errors right away.
+ * The first registered type the exception is an instance of wins, otherwise the default policy is used.
+ * Configure before subscribing.
+ */
+@ThreadSafe
+public class ClassifyingRetryPolicy implements RetryPolicy {
+
+    private final Map<Class<? extends Exception>, RetryPolicy> policies = new LinkedHashMap<Class<? extends Exception>, RetryPolicy>();
+    private final RetryPolicy defaultPolicy;
+
+    /**
+     * A policy that never retries, for exceptions that will fail every time.
+     */
+    public static final RetryPolicy NO_RETRY = new RetryPolicy() {
+        @Override
+        public int getRequeueDelay(Message msg, Exception e) {
+            return GIVE_UP;
+        }
+    };
+
+    public ClassifyingRetryPolicy(RetryPolicy defaultPolicy) {
+        checkNotNull(defaultPolicy);
+        this.defaultPolicy = defaultPolicy;
+    }
+
+    public synchronized ClassifyingRetryPolicy on(Class<? extends Exception> type, RetryPolicy policy) {
+        checkNotNull(type);
+        checkNotNull(policy);
+        policies.put(type, policy);
+        return this;
+    }
+
+    @Override
+    public int getRequeueDelay(Message msg, Exception e) {
+        return getPolicy(e).getRequeueDelay(msg, e);
+    }
+
+    private synchronized RetryPolicy getPolicy(Exception e) {
+        for (Map.Entry<Class<? extends Exception>, RetryPolicy> entry : policies.entrySet()) {
+            if (entry.getKey().isInstance(e)) {
+                return entry.getValue();
+            }
+        }
+        return defaultPolicy;
+    }
+
+}
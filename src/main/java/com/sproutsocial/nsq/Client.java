@@ -10,6 +10,7 @@ import org.slf4j.LoggerFactory;
 import javax.net.ssl.SSLSocketFactory;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static com.sproutsocial.nsq.Util.checkArgument;
 import static com.sproutsocial.nsq.Util.checkNotNull;
@@ -23,12 +24,19 @@ public class Client {
     private final Set<SubConnection> subConnections = new CopyOnWriteArraySet<SubConnection>();
     private final Gson gson = new GsonBuilder().setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES).create();
     private final Object subConMonitor = new Object();
-    private final ScheduledExecutorService schedExecutor = Executors.newScheduledThreadPool(2, Util.threadFactory("nsq-sched"));
+    private final ExecutorService schedExecutor = Executors.newFixedThreadPool(2, Util.threadFactory("nsq-sched"));
+    private final HashedWheelTimer timer = new HashedWheelTimer(Util.threadFactory("nsq-timer"), schedExecutor, TIMER_TICK_MILLIS, TIMER_WHEEL_SIZE);
+    private final AtomicBoolean isHandlerTimerStarted = new AtomicBoolean(false);
+    private final InFlightBudget inFlightBudget = new InFlightBudget(this);
 
     private ExecutorService handlerExecutor;
+    private final ExecutorService connectExecutor = Executors.newCachedThreadPool(Util.threadFactory("nsq-connect"));
     private SSLSocketFactory sslSocketFactory;
     private byte[] authSecret;
 
+    private static final int HANDLER_TIMER_TICK_MILLIS = 500;
+    private static final int TIMER_TICK_MILLIS = 10;
+    private static final int TIMER_WHEEL_SIZE = 512;
     private static final Logger logger = LoggerFactory.getLogger(Client.class);
     private static final Client defaultClient = new Client();
 
@@ -54,6 +62,8 @@ public class Client {
         long start = Util.clock();
         isClean &= stopSubscribers(waitMillis);
 
+        isClean &= Util.shutdownAndAwaitTermination(connectExecutor, 100, TimeUnit.MILLISECONDS);
+
         if (handlerExecutor != null && !handlerExecutor.isTerminated()) {
             int timeout = Math.max((int) (waitMillis - (Util.clock() - start)), 100);
             isClean &= Util.shutdownAndAwaitTermination(handlerExecutor, timeout, TimeUnit.MILLISECONDS);
@@ -63,6 +73,7 @@ public class Client {
             publisher.stop();
         }
 
+        timer.stop();
         int timeout = Math.max((int) (waitMillis - (Util.clock() - start)), 100);
         isClean &= Util.shutdownAndAwaitTermination(schedExecutor, timeout, TimeUnit.MILLISECONDS);
 
@@ -100,6 +111,23 @@ public class Client {
         return isClean;
     }
 
+    /**
+     * Limits messages in flight across all subscriptions of this client. The budget is shared by weight
+     * (see {@link Subscriber#setInFlightWeight}), share a subscription is not using is lent to busy ones
+     * and reclaimed when it gets busy again. Rebalanced every second. 0 (the default) means no limit.
+     */
+    public void setMaxInFlight(int maxInFlight) {
+        inFlightBudget.setMaxInFlight(maxInFlight);
+    }
+
+    public int getMaxInFlight() {
+        return inFlightBudget.getMaxInFlight();
+    }
+
+    InFlightBudget getInFlightBudget() {
+        return inFlightBudget;
+    }
+
     public synchronized void setExecutor(ExecutorService exec) {
         checkNotNull(exec);
         checkState(this.handlerExecutor == null, "executor can only be set once, must be set before subscribing");
@@ -148,37 +176,60 @@ public class Client {
         subConnections.add(subCon);
     }
 
-    ScheduledExecutorService getSchedExecutor() {
+    /**
+     * Runs short tasks that should not block the calling thread, and expired timer tasks.
+     */
+    ExecutorService getSchedExecutor() {
         return schedExecutor;
     }
 
-    ScheduledFuture scheduleAtFixedRate(final Runnable runnable, int initialDelay, int period, boolean jitter) {
+    /**
+     * Establishes new subscriber connections in the background, one thread per connection attempt
+     * so a slow or dead nsqd never delays the others.
+     */
+    //not synchronized, subscriptions call this while holding their own lock
+    ExecutorService getConnectExecutor() {
+        return connectExecutor;
+    }
+
+    HashedWheelTimer getTimer() {
+        return timer;
+    }
+
+    HashedWheelTimer.Timeout scheduleAtFixedRate(final Runnable runnable, int initialDelay, int period, boolean jitter) {
         if (jitter) {
             initialDelay = (int) (initialDelay * 0.1 + Math.random() * initialDelay * 0.9);
         }
-        return schedExecutor.scheduleAtFixedRate(new Runnable() {
-            public void run() {
-                try {
-                    runnable.run();
-                }
-                catch (Throwable t) {
-                    logger.error("task error", t);
-                }
-            }
-        }, initialDelay, period, TimeUnit.MILLISECONDS);
+        return timer.scheduleAtFixedRate(runnable, initialDelay, period);
     }
 
-    void schedule(final Runnable runnable, int delay) {
-        schedExecutor.schedule(new Runnable() {
-            public void run() {
-                try {
-                    runnable.run();
-                }
-                catch (Throwable t) {
-                    logger.error("task error", t);
+    HashedWheelTimer.Timeout schedule(final Runnable runnable, int delay) {
+        return timer.schedule(runnable, delay);
+    }
+
+    /**
+     * Stops timers and the task executor, for a publisher that is the only user of this client.
+     */
+    void stopTimer(long waitMillis) {
+        timer.stop();
+        Util.shutdownAndAwaitTermination(schedExecutor, waitMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts the single timer that sends auto TOUCH and enforces handler deadlines for all subscriber connections,
+     * does nothing if already started.
+     */
+    void startHandlerTimer() {
+        if (isHandlerTimerStarted.compareAndSet(false, true)) {
+            scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    long now = Util.clock();
+                    for (SubConnection subCon : subConnections) {
+                        subCon.checkHandling(now);
+                    }
                 }
-            }
-        }, delay, TimeUnit.MILLISECONDS);
+            }, HANDLER_TIMER_TICK_MILLIS, HANDLER_TIMER_TICK_MILLIS, false);
+        }
     }
 
     void connectionClosed(SubConnection closedCon) {
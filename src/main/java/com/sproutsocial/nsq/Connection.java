@@ -15,6 +15,7 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.zip.Deflater;
 import java.util.zip.DeflaterOutputStream;
 import java.util.zip.Inflater;
@@ -29,10 +30,12 @@ abstract class Connection extends BasePubSub implements Closeable {
     protected DataOutputStream out;
     protected DataInputStream in;
     protected volatile boolean isReading = true;
+    private final AtomicBoolean isClosed = new AtomicBoolean();
 
     protected int msgTimeout = 60000;
     protected int heartbeatInterval = 30000;
     protected int maxRdyCount = 2500;
+    protected long connectRtt; //round trip of the IDENTIFY command, millis
 
     protected long lastActionFlush; //time the last action was flushed (NOP does not count)
     protected int unflushedCount;
@@ -40,6 +43,11 @@ abstract class Connection extends BasePubSub implements Closeable {
 
     protected final BlockingQueue<String> respQueue = new ArrayBlockingQueue<String>(1);
     protected final ExecutorService handlerExecutor;
+    private final Runnable heartbeatTask = new Runnable() {
+        public void run() {
+            receivedHeartbeat();
+        }
+    };
 
     private static final ThreadFactory readThreadFactory = Util.threadFactory("nsq-read");
     private static final Set<String> nonFatalErrors = Collections.unmodifiableSet(new HashSet<String>(
@@ -61,7 +69,9 @@ abstract class Connection extends BasePubSub implements Closeable {
         StreamPair streams = setStreams(sock.getInputStream(), sock.getOutputStream(), new StreamPair());
         out.write("  V2".getBytes(Util.US_ASCII));
 
+        long identifyStart = Util.clock();
         String response = connectCommand("IDENTIFY", client.getGson().toJson(config).getBytes(Util.UTF_8));
+        connectRtt = Util.clock() - identifyStart;
         ServerConfig serverConfig = client.getGson().fromJson(response, ServerConfig.class);
         logger.debug("serverConfig:{}", response);
         setConfig(serverConfig);
@@ -94,6 +104,7 @@ abstract class Connection extends BasePubSub implements Closeable {
                 read();
             }
         }).start();
+        Events.connection(host, "connected");
     }
 
     private String connectCommand(String command, byte[] data) throws IOException {
@@ -222,7 +233,9 @@ abstract class Connection extends BasePubSub implements Closeable {
 
     @GuardedBy("this")
     protected void flush() throws IOException {
+        Object event = Events.beginFlush();
         out.flush();
+        Events.endFlush(event, host, unflushedCount);
         lastActionFlush = Util.clock();
         unflushedCount = 0;
     }
@@ -247,7 +260,7 @@ abstract class Connection extends BasePubSub implements Closeable {
             }
         }
         else if (frameType == 2) {  //message
-            onMessage(in.readLong(), in.readUnsignedShort(), readAscii(16), readBytes(size - 30));
+            onMessageFrame(size - 4);
         }
         else {
             throw new NSQException("bad frame type:" + frameType);
@@ -262,15 +275,14 @@ abstract class Connection extends BasePubSub implements Closeable {
                 String response = readResponse();
                 if ("_heartbeat_".equals(response)) {
                     //don't block this thread
-                    client.getSchedExecutor().execute(new Runnable() {
-                        public void run() {
-                            receivedHeartbeat();
-                        }
-                    });
+                    client.getSchedExecutor().execute(heartbeatTask);
                 }
                 else if (response != null) {
                     respQueue.offer(response);
                 }
+                if (in.available() == 0) {
+                    onReadIdle();
+                }
             }
         }
         catch (EOFException e) {
@@ -294,16 +306,30 @@ abstract class Connection extends BasePubSub implements Closeable {
             out.write("NOP\n".getBytes(Util.US_ASCII));
             out.flush(); //NOP does not update lastActionFlush
             lastHeartbeat = Util.clock();
+            Events.heartbeat(host);
         }
         catch (Throwable t) {
             logger.error("receivedHeartbeat error", t);
         }
     }
 
+    /**
+     * Reads a message frame body (timestamp, attempts, 16 byte id, data) from the input stream.
+     */
+    protected void onMessageFrame(int size) throws IOException {
+        onMessage(in.readLong(), in.readUnsignedShort(), readAscii(16), readBytes(size - 26));
+    }
+
     protected void onMessage(long timestamp, int attempts, String id, byte[] data) {
         throw new NSQException("unexpected frame type 2 - message"); //overridden by SubConnection
     }
 
+    /**
+     * Called on the read thread when everything received so far has been processed.
+     */
+    protected void onReadIdle() {
+    }
+
     private byte[] readBytes(int size) throws IOException {
         byte[] data = new byte[size];
         in.readFully(data);
@@ -344,6 +370,9 @@ abstract class Connection extends BasePubSub implements Closeable {
 
     public void close() {
         isReading = false;
+        if (isClosed.compareAndSet(false, true)) {
+            Events.connection(host, "closed");
+        }
         Util.closeQuietly(out);
         Util.closeQuietly(in);
         cancelTasks();
@@ -368,10 +397,18 @@ abstract class Connection extends BasePubSub implements Closeable {
         return lastActionFlush;
     }
 
+    public synchronized int getHeartbeatInterval() {
+        return heartbeatInterval;
+    }
+
     public synchronized int getMaxRdyCount() {
         return maxRdyCount;
     }
 
+    public synchronized long getConnectRtt() {
+        return connectRtt;
+    }
+
     //helpers used during initialization only
     private static class StreamPair {
         private InputStream baseIn;
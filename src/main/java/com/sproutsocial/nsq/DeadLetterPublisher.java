@@ -0,0 +1,180 @@
+package com.sproutsocial.nsq;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.sproutsocial.nsq.Util.checkArgument;
+import static com.sproutsocial.nsq.Util.checkNotNull;
+
+/**
+ * FailedMessageHandler that publishes failed messages to a dead letter topic, by default the original topic + ".dlq".
+ * Messages are batched per dead letter topic and sent with MPUB on the publisher's batch thread.
+ * The original message is finished only after the dead letter publish succeeds, if it fails the message is requeued
+ * so nothing is lost. Optionally the data is wrapped in a json envelope with the original topic, channel, id,
+ * attempts, timestamp and last error (data is base64 encoded).
+ * Configure before passing it to {@link Subscriber#setFailedMessageHandler}.
+ */
+@ThreadSafe
+public class DeadLetterPublisher implements FailedMessageHandler {
+
+    private final Publisher publisher;
+    private final HashedWheelTimer.Timeout sendTask;
+
+    @GuardedBy("this") private String topicSuffix = ".dlq";
+    @GuardedBy("this") private boolean includeMetadata = false;
+    @GuardedBy("this") private int maxBatchMessages = 100;
+    @GuardedBy("this") private int maxDelayMillis = 100;
+    @GuardedBy("this") private int requeueDelayMillis = 5000;
+    @GuardedBy("this") private Map<String, List<Message>> pending = new HashMap<String, List<Message>>();
+    @GuardedBy("this") private Map<String, List<byte[]>> pendingData = new HashMap<String, List<byte[]>>();
+
+    private static final Logger logger = LoggerFactory.getLogger(DeadLetterPublisher.class);
+
+    public DeadLetterPublisher(Publisher publisher) {
+        checkNotNull(publisher);
+        this.publisher = publisher;
+        this.sendTask = publisher.getClient().getTimer().newTimeout(new Runnable() {
+            public void run() {
+                send();
+            }
+        }, publisher.getBatchExecutor());
+    }
+
+    public synchronized void setTopicSuffix(String topicSuffix) {
+        checkNotNull(topicSuffix);
+        checkArgument(!topicSuffix.isEmpty());
+        this.topicSuffix = topicSuffix;
+    }
+
+    /**
+     * Wrap the data in a json envelope with the message metadata and last error. Defaults to false, the raw data is published.
+     */
+    public synchronized void setIncludeMetadata(boolean includeMetadata) {
+        this.includeMetadata = includeMetadata;
+    }
+
+    /**
+     * A batch is sent when it has maxMessages or maxDelayMillis after its first message. Defaults to 100 and 100.
+     */
+    public synchronized void setBatchConfig(int maxMessages, int maxDelayMillis) {
+        checkArgument(maxMessages > 0);
+        checkArgument(maxDelayMillis > 0);
+        this.maxBatchMessages = maxMessages;
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * Requeue delay for messages whose dead letter publish failed. Defaults to 5000.
+     */
+    public synchronized void setRequeueDelayMillis(int requeueDelayMillis) {
+        checkArgument(requeueDelayMillis >= 0);
+        this.requeueDelayMillis = requeueDelayMillis;
+    }
+
+    /**
+     * Takes over finishing the message, it is finished once the dead letter publish succeeds.
+     */
+    @Override
+    public void failed(String topic, String channel, Message msg) {
+        failed(topic, channel, msg, null);
+    }
+
+    /**
+     * Messages are finished once the batched dead letter publish succeeds.
+     */
+    @Override
+    public boolean isFinishedByHandler() {
+        return true;
+    }
+
+    @Override
+    public void failed(String topic, String channel, Message msg, Exception error) {
+        boolean sendNow;
+        synchronized (this) {
+            String dlqTopic = topic + topicSuffix;
+            byte[] data = includeMetadata ? envelope(topic, channel, msg, error) : msg.getData();
+            List<Message> msgs = pending.get(dlqTopic);
+            if (msgs == null) {
+                msgs = new ArrayList<Message>();
+                pending.put(dlqTopic, msgs);
+                pendingData.put(dlqTopic, new ArrayList<byte[]>());
+            }
+            msgs.add(msg);
+            pendingData.get(dlqTopic).add(data);
+            sendNow = msgs.size() >= maxBatchMessages;
+            if (!sendNow) {
+                publisher.getClient().getTimer().schedule(sendTask, maxDelayMillis); //no-op if already pending
+            }
+        }
+        if (sendNow) {
+            publisher.getBatchExecutor().execute(new Runnable() {
+                public void run() {
+                    send();
+                }
+            });
+        }
+    }
+
+    private void send() {
+        Map<String, List<Message>> toSend;
+        Map<String, List<byte[]>> toSendData;
+        int requeueDelay;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            toSend = pending;
+            toSendData = pendingData;
+            pending = new HashMap<String, List<Message>>();
+            pendingData = new HashMap<String, List<byte[]>>();
+            requeueDelay = requeueDelayMillis;
+        }
+        for (Map.Entry<String, List<Message>> entry : toSend.entrySet()) {
+            List<Message> msgs = entry.getValue();
+            try {
+                publisher.publish(entry.getKey(), toSendData.get(entry.getKey()));
+                for (Message msg : msgs) {
+                    msg.finish();
+                }
+                logger.debug("dead lettered {} messages to:{}", msgs.size(), entry.getKey());
+            }
+            catch (Exception e) {
+                logger.error("dead letter publish failed, requeueing {} messages. topic:{}", msgs.size(), entry.getKey(), e);
+                for (Message msg : msgs) {
+                    msg.requeue(requeueDelay);
+                }
+            }
+        }
+    }
+
+    private byte[] envelope(String topic, String channel, Message msg, Exception error) {
+        DeadLetter deadLetter = new DeadLetter();
+        deadLetter.topic = topic;
+        deadLetter.channel = channel;
+        deadLetter.id = msg.getId();
+        deadLetter.attempts = msg.getAttempts();
+        deadLetter.timestamp = msg.getTimestamp();
+        deadLetter.error = error != null ? error.toString() : null;
+        deadLetter.data = Base64.getEncoder().encodeToString(msg.getData());
+        return publisher.getClient().getGson().toJson(deadLetter).getBytes(Util.UTF_8);
+    }
+
+    private static class DeadLetter {
+        private String topic;
+        private String channel;
+        private String id;
+        private int attempts;
+        private long timestamp;
+        private String error;
+        private String data;
+    }
+
+}
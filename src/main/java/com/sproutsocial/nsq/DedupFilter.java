@@ -0,0 +1,154 @@
+package com.sproutsocial.nsq;
+
+import net.jcip.annotations.ThreadSafe;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.sproutsocial.nsq.Util.checkArgument;
+
+/**
+ * Remembers finished message keys in a rotating Bloom filter with two generations. Keys go into the current generation
+ * and are checked against both, each rotation clears the older one and makes it current, so a key is remembered
+ * for between one and two windows. Memory is fixed at two filters sized for the expected keys per window and
+ * false positive rate, bits are set with CAS so checks and inserts never lock.
+ * Keys being handled are also kept exactly as pending markers, so a redelivery that arrives while the first delivery
+ * is still running is caught before the key reaches the Bloom filter. Markers older than two windows are dropped on
+ * rotation in case a handler never responds.
+ * A false positive finishes a message that was never handled, size it accordingly.
+ */
+@ThreadSafe
+class DedupFilter {
+
+    private final AtomicLongArray[] generations = new AtomicLongArray[2];
+    private final long numBits;
+    private final int numHashes;
+    private final DedupKeyExtractor keyExtractor;
+    private final ConcurrentHashMap<Long, Integer> pending = new ConcurrentHashMap<Long, Integer>();
+    private volatile int current = 0;
+    private volatile int rotations = 0;
+
+    DedupFilter(int expectedKeys, double falsePositiveRate, DedupKeyExtractor keyExtractor) {
+        checkArgument(expectedKeys > 0);
+        checkArgument(falsePositiveRate > 0 && falsePositiveRate < 1);
+        long bits = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+        this.numBits = Math.max(64, (bits + 63) / 64 * 64);
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / expectedKeys * Math.log(2)));
+        checkArgument(numBits / 64 <= Integer.MAX_VALUE);
+        for (int i = 0; i < generations.length; i++) {
+            generations[i] = new AtomicLongArray((int) (numBits / 64));
+        }
+        this.keyExtractor = keyExtractor;
+    }
+
+    long hash(Message msg) {
+        if (keyExtractor == null) {
+            String id = msg.getId();
+            long h = 0xcbf29ce484222325L;
+            for (int i = 0; i < id.length(); i++) {
+                h = (h ^ id.charAt(i)) * 0x100000001b3L;
+            }
+            return mix(h);
+        }
+        byte[] key = keyExtractor.getKey(msg);
+        long h = 0xcbf29ce484222325L;
+        for (byte b : key) {
+            h = (h ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    /**
+     * @return true if keys are message ids, so a first delivery (attempts 1) can never be a duplicate
+     */
+    boolean isKeyedById() {
+        return keyExtractor == null;
+    }
+
+    /**
+     * Marks the key as being handled.
+     * @return a token to pass to {@link #handled}, or -1 if a message with the same key is already being handled
+     */
+    int startHandling(long hash) {
+        Integer token = rotations;
+        return pending.putIfAbsent(hash, token) == null ? token : -1;
+    }
+
+    /**
+     * Clears the pending marker, finished keys are remembered and requeued keys are not.
+     */
+    void handled(long hash, int token, boolean isFinished) {
+        if (isFinished) {
+            put(hash);
+        }
+        pending.remove(hash, token);
+    }
+
+    int getPendingCount() {
+        return pending.size();
+    }
+
+    boolean mightContain(long hash) {
+        return contains(generations[0], hash) || contains(generations[1], hash);
+    }
+
+    void put(long hash) {
+        AtomicLongArray bits = generations[current];
+        long h2 = (hash >>> 32) | 1; //double hashing, the k bit positions are hash + i * h2
+        for (int i = 0; i < numHashes; i++) {
+            long bit = index(hash + i * h2);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            long value = bits.get(word);
+            while ((value & mask) == 0 && !bits.compareAndSet(word, value, value | mask)) {
+                value = bits.get(word);
+            }
+        }
+    }
+
+    /**
+     * Called by a single timer, forgets the keys of the older generation.
+     */
+    void rotate() {
+        int next = 1 - current;
+        AtomicLongArray bits = generations[next];
+        for (int i = 0; i < bits.length(); i++) {
+            bits.set(i, 0);
+        }
+        current = next;
+        int oldest = rotations - 1;
+        rotations++;
+        for (Iterator<Integer> iter = pending.values().iterator(); iter.hasNext(); ) {
+            if (iter.next() < oldest) {
+                iter.remove();
+            }
+        }
+    }
+
+    private boolean contains(AtomicLongArray bits, long hash) {
+        long h2 = (hash >>> 32) | 1; //double hashing, the k bit positions are hash + i * h2
+        for (int i = 0; i < numHashes; i++) {
+            long bit = index(hash + i * h2);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private long index(long combined) {
+        return (combined & Long.MAX_VALUE) % numBits;
+    }
+
+    //murmur3 finalizer, spreads the fnv hash over all 64 bits
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb93fe53ae63bL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+}
@@ -0,0 +1,14 @@
+package com.sproutsocial.nsq;
+
+/**
+ * Extracts the key used to detect duplicate messages, see {@link Subscriber#setDeduplication}.
+ * Called on the connection read thread so it must be fast, it must be thread safe.
+ */
+public interface DedupKeyExtractor {
+
+    /**
+     * @return the key, e.g. a business id or a hash of the content. Messages with equal keys are duplicates.
+     */
+    byte[] getKey(Message msg);
+
+}
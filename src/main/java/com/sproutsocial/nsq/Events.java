@@ -0,0 +1,46 @@
+package com.sproutsocial.nsq;
+
+/**
+ * Hooks for JDK Flight Recorder events. This is the no-op version used on java 8, the jar is multi-release and
+ * java 11 and up load the version in src/main/java11 that records the events.
+ * Span methods return an event to pass to the matching end method, it is null when the event is not being recorded.
+ */
+final class Events {
+
+    private Events() {
+    }
+
+    static Object beginPublish() {
+        return null;
+    }
+
+    static void endPublish(Object event, String command, String topic, HostAndPort nsqd, int messages, long bytes, boolean isSuccess) {
+    }
+
+    static Object beginMessage() {
+        return null;
+    }
+
+    static void endMessage(Object event, NSQMessage msg, String result) {
+    }
+
+    static Object beginFlush() {
+        return null;
+    }
+
+    static void endFlush(Object event, HostAndPort nsqd, int commands) {
+    }
+
+    static void rdy(HostAndPort nsqd, String topic, int rdy) {
+    }
+
+    static void heartbeat(HostAndPort nsqd) {
+    }
+
+    static void connection(HostAndPort nsqd, String state) {
+    }
+
+    static void reconnect(HostAndPort nsqd, String topic, int attempt, long delayMillis) {
+    }
+
+}
@@ -0,0 +1,35 @@
+package com.sproutsocial.nsq;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.sproutsocial.nsq.Util.checkArgument;
+
+/**
+ * Doubles the requeue delay with every attempt up to maxDelayMillis, with full jitter (a random delay up to that value)
+ * so failed messages do not all come back at once. Gives up after maxAttempts.
+ */
+public class ExponentialRetryPolicy implements RetryPolicy {
+
+    private final int initDelayMillis;
+    private final int maxDelayMillis;
+    private final int maxAttempts;
+
+    public ExponentialRetryPolicy(int initDelayMillis, int maxDelayMillis, int maxAttempts) {
+        checkArgument(initDelayMillis > 0 && initDelayMillis <= maxDelayMillis);
+        checkArgument(maxAttempts > 0);
+        this.initDelayMillis = initDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxAttempts = maxAttempts;
+    }
+
+    @Override
+    public int getRequeueDelay(Message msg, Exception e) {
+        int attempts = msg.getAttempts();
+        if (attempts >= maxAttempts) {
+            return GIVE_UP;
+        }
+        long delay = Math.min((long) initDelayMillis << Math.min(Math.max(attempts - 1, 0), 30), maxDelayMillis);
+        return (int) ThreadLocalRandom.current().nextLong(delay + 1);
+    }
+
+}
@@ -1,7 +1,26 @@
 package com.sproutsocial.nsq;
 
+/**
+ * Called for messages that reached maxAttempts, see {@link Subscriber#setFailedMessageHandler}.
+ */
 public interface FailedMessageHandler {
 
     void failed(String topic, String channel, Message msg);
 
+    /**
+     * Called with the last handler error, if known. Defaults to {@link #failed(String, String, Message)}.
+     */
+    default void failed(String topic, String channel, Message msg, Exception error) {
+        failed(topic, channel, msg);
+    }
+
+    /**
+     * Defaults to false: failed is called on the handler executor and the message is finished by the subscriber.
+     * Return true to take over finishing (or requeueing) the message, failed is then called on the connection thread
+     * and should hand the work off asynchronously instead of blocking.
+     */
+    default boolean isFinishedByHandler() {
+        return false;
+    }
+
 }
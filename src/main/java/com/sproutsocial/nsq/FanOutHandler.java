@@ -0,0 +1,132 @@
+package com.sproutsocial.nsq;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static com.sproutsocial.nsq.Util.checkNotNull;
+
+/**
+ * Delivers each message of one subscription to several in-process consumers, instead of each consumer subscribing
+ * on its own channel and receiving its own copy from nsqd. Consumers run one after the other on the handler thread,
+ * each sees every message even if an earlier one threw. The message is finished once, after all consumers succeed.
+ * When a consumer fails the FailurePolicy decides what happens, a requeued message waits for the RetryPolicy delay
+ * and is handled by {@link RetryHandler}, so giving up goes to the subscriber FailedMessageHandler as usual.
+ * Consumers can be added and removed while subscribed.
+ */
+@ThreadSafe
+public class FanOutHandler implements MessageHandler {
+
+    public enum FailurePolicy {
+        /** Requeue the message, every consumer handles the redelivery. */
+        REQUEUE_ALL,
+        /**
+         * Requeue the message, consumers that already succeeded skip the redelivery. Which consumers succeeded is
+         * remembered in memory for the most recent maxTrackedMessages failed messages, beyond that all consumers run again.
+         */
+        REQUEUE_FAILED,
+        /** Log the failure and finish the message anyway. */
+        FINISH
+    }
+
+    private final List<MessageDataHandler> consumers = new CopyOnWriteArrayList<MessageDataHandler>();
+    private final FailurePolicy failurePolicy;
+    private final RetryHandler retryHandler;
+    @GuardedBy("this") private final Map<String, Set<MessageDataHandler>> succeeded;
+
+    private static final Logger logger = LoggerFactory.getLogger(FanOutHandler.class);
+
+    public FanOutHandler(FailurePolicy failurePolicy, RetryPolicy retryPolicy, final int maxTrackedMessages) {
+        checkNotNull(failurePolicy);
+        this.failurePolicy = failurePolicy;
+        this.retryHandler = new RetryHandler(new MessageHandler() {
+            @Override
+            public void accept(Message msg) {
+                fanOut(msg);
+            }
+        }, retryPolicy);
+        this.succeeded = new LinkedHashMap<String, Set<MessageDataHandler>>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Set<MessageDataHandler>> eldest) {
+                return size() > maxTrackedMessages;
+            }
+        };
+    }
+
+    public FanOutHandler(FailurePolicy failurePolicy, RetryPolicy retryPolicy) {
+        this(failurePolicy, retryPolicy, 10000);
+    }
+
+    public void addConsumer(MessageDataHandler consumer) {
+        checkNotNull(consumer);
+        consumers.add(consumer);
+    }
+
+    public boolean removeConsumer(MessageDataHandler consumer) {
+        return consumers.remove(consumer);
+    }
+
+    public List<MessageDataHandler> getConsumers() {
+        return Collections.unmodifiableList(consumers);
+    }
+
+    @Override
+    public void accept(Message msg) {
+        retryHandler.accept(msg);
+    }
+
+    private void fanOut(Message msg) {
+        Set<MessageDataHandler> done = null;
+        if (failurePolicy == FailurePolicy.REQUEUE_FAILED) {
+            synchronized (this) {
+                done = succeeded.remove(msg.getId());
+            }
+        }
+        RuntimeException failure = null;
+        for (MessageDataHandler consumer : consumers) {
+            if (done != null && done.contains(consumer)) {
+                continue;
+            }
+            try {
+                consumer.accept(msg.getData());
+                if (failurePolicy == FailurePolicy.REQUEUE_FAILED) {
+                    if (done == null) {
+                        done = new HashSet<MessageDataHandler>();
+                    }
+                    done.add(consumer);
+                }
+            }
+            catch (RuntimeException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+                else {
+                    failure.addSuppressed(e);
+                }
+            }
+        }
+        if (failure == null) {
+            return;
+        }
+        if (failurePolicy == FailurePolicy.FINISH) {
+            logger.error("consumer error, finishing message. id:{}", msg.getId(), failure);
+            return;
+        }
+        if (done != null) {
+            synchronized (this) {
+                succeeded.put(msg.getId(), done);
+            }
+        }
+        throw failure;
+    }
+
+}
@@ -0,0 +1,26 @@
+package com.sproutsocial.nsq;
+
+import static com.sproutsocial.nsq.Util.checkArgument;
+
+/**
+ * Requeues with the given delay for each attempt in turn, the first delay after the first failure.
+ * Gives up once the schedule is used up.
+ */
+public class FixedScheduleRetryPolicy implements RetryPolicy {
+
+    private final int[] delaysMillis;
+
+    public FixedScheduleRetryPolicy(int... delaysMillis) {
+        for (int delay : delaysMillis) {
+            checkArgument(delay >= 0);
+        }
+        this.delaysMillis = delaysMillis.clone();
+    }
+
+    @Override
+    public int getRequeueDelay(Message msg, Exception e) {
+        int i = msg.getAttempts() - 1;
+        return i >= 0 && i < delaysMillis.length ? delaysMillis[i] : GIVE_UP;
+    }
+
+}
@@ -0,0 +1,289 @@
+package com.sproutsocial.nsq;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+import static com.sproutsocial.nsq.Util.checkArgument;
+import static com.sproutsocial.nsq.Util.checkNotNull;
+
+/**
+ * Hashed timing wheel used for all client timers. Insert and cancel are O(1), each tick expires a single bucket.
+ * Expired tasks run on an executor, not the tick thread, so a slow task never delays other timers.
+ * A Timeout can be rescheduled after it expires and periodic timeouts are reinserted after they run,
+ * so nothing is allocated per tick or per period. Once stopped the timer cannot be restarted, scheduling throws.
+ */
+@ThreadSafe
+class HashedWheelTimer {
+
+    private final Timeout[] wheel;
+    private final int mask;
+    private final long tickMillis;
+    private final Executor defaultExecutor;
+    private final ThreadFactory threadFactory;
+
+    @GuardedBy("this") private long startTime;
+    @GuardedBy("this") private long currentTick = 0;
+    @GuardedBy("this") private Thread tickThread;
+    private volatile boolean isStopped = false;
+
+    private static final int INIT = 0;
+    private static final int PENDING = 1;
+    private static final int EXPIRED = 2;
+    private static final int CANCELLED = 3;
+
+    private static final Logger logger = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    HashedWheelTimer(ThreadFactory threadFactory, Executor defaultExecutor, long tickMillis, int wheelSize) {
+        checkNotNull(threadFactory);
+        checkNotNull(defaultExecutor);
+        checkArgument(tickMillis > 0);
+        checkArgument(wheelSize > 0 && (wheelSize & (wheelSize - 1)) == 0); //power of two
+        this.threadFactory = threadFactory;
+        this.defaultExecutor = defaultExecutor;
+        this.tickMillis = tickMillis;
+        this.wheel = new Timeout[wheelSize];
+        this.mask = wheelSize - 1;
+    }
+
+    /**
+     * Creates a timeout that is not scheduled yet, it runs on the executor given here.
+     */
+    Timeout newTimeout(Runnable task, Executor executor) {
+        return new Timeout(task, executor, 0);
+    }
+
+    Timeout newTimeout(Runnable task) {
+        return newTimeout(task, defaultExecutor);
+    }
+
+    Timeout schedule(Runnable task, long delayMillis) {
+        Timeout timeout = newTimeout(task);
+        schedule(timeout, delayMillis);
+        return timeout;
+    }
+
+    Timeout scheduleAtFixedRate(Runnable task, long initialDelayMillis, long periodMillis) {
+        checkArgument(periodMillis > 0);
+        Timeout timeout = new Timeout(task, defaultExecutor, periodMillis);
+        schedule(timeout, initialDelayMillis);
+        return timeout;
+    }
+
+    /**
+     * Schedules a new or previously expired timeout.
+     * @return false if the timeout is already pending or cancelled
+     * @throws RejectedExecutionException if the timer is stopped
+     */
+    synchronized boolean schedule(Timeout timeout, long delayMillis) {
+        if (isStopped) {
+            throw new RejectedExecutionException("timer stopped");
+        }
+        if (timeout.state == PENDING || timeout.state == CANCELLED) {
+            return false;
+        }
+        start();
+        timeout.deadline = Util.clock() + Math.max(delayMillis, 0);
+        insert(timeout);
+        return true;
+    }
+
+    /**
+     * Drops all pending timeouts without running them. They are left unscheduled, not cancelled,
+     * but can never run again since scheduling on a stopped timer throws.
+     */
+    void stop() {
+        Thread thread;
+        synchronized (this) {
+            isStopped = true;
+            thread = tickThread;
+            for (int i = 0; i < wheel.length; i++) {
+                Timeout timeout = wheel[i];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    timeout.prev = null;
+                    timeout.next = null;
+                    timeout.state = INIT;
+                    timeout = next;
+                }
+                wheel[i] = null;
+            }
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    boolean isStopped() {
+        return isStopped;
+    }
+
+    @GuardedBy("this")
+    private void start() {
+        if (tickThread == null) {
+            startTime = Util.clock();
+            tickThread = threadFactory.newThread(new Runnable() {
+                public void run() {
+                    tickLoop();
+                }
+            });
+            tickThread.start();
+        }
+    }
+
+    @GuardedBy("this")
+    private void insert(Timeout timeout) {
+        long targetTick = Math.max((timeout.deadline - startTime + tickMillis - 1) / tickMillis, currentTick);
+        timeout.remainingRounds = (targetTick - currentTick) / wheel.length;
+        int index = (int) (targetTick & mask);
+        timeout.bucket = index;
+        timeout.prev = null;
+        timeout.next = wheel[index];
+        if (wheel[index] != null) {
+            wheel[index].prev = timeout;
+        }
+        wheel[index] = timeout;
+        timeout.state = PENDING;
+    }
+
+    @GuardedBy("this")
+    private void remove(Timeout timeout) {
+        if (timeout.prev != null) {
+            timeout.prev.next = timeout.next;
+        }
+        else {
+            wheel[timeout.bucket] = timeout.next;
+        }
+        if (timeout.next != null) {
+            timeout.next.prev = timeout.prev;
+        }
+        timeout.prev = null;
+        timeout.next = null;
+    }
+
+    private synchronized boolean cancel(Timeout timeout) {
+        if (timeout.state == PENDING) {
+            remove(timeout);
+        }
+        boolean wasActive = timeout.state != CANCELLED;
+        timeout.state = CANCELLED;
+        return wasActive;
+    }
+
+    //fixed rate, but ticks missed while the task was running are skipped instead of run back to back
+    private synchronized void reschedulePeriodic(Timeout timeout) {
+        if (isStopped || timeout.state != EXPIRED) {
+            return; //cancelled, or already rescheduled by a schedule call while it was running
+        }
+        timeout.deadline = Math.max(timeout.deadline + timeout.period, Util.clock());
+        insert(timeout);
+    }
+
+    private void tickLoop() {
+        while (!isStopped) {
+            Timeout expired = null;
+            synchronized (this) {
+                long nextTickTime = startTime + currentTick * tickMillis;
+                long sleep = nextTickTime - Util.clock();
+                if (sleep > 0) {
+                    try {
+                        wait(sleep);
+                    }
+                    catch (InterruptedException e) {
+                        return;
+                    }
+                    continue; //re-check the time, wait can return early
+                }
+                int index = (int) (currentTick & mask);
+                Timeout timeout = wheel[index];
+                while (timeout != null) {
+                    Timeout next = timeout.next;
+                    if (timeout.remainingRounds <= 0) {
+                        remove(timeout);
+                        timeout.state = EXPIRED;
+                        timeout.nextExpired = expired;
+                        expired = timeout;
+                    }
+                    else {
+                        timeout.remainingRounds--;
+                    }
+                    timeout = next;
+                }
+                currentTick++;
+            }
+            while (expired != null) {
+                Timeout timeout = expired;
+                expired = timeout.nextExpired;
+                timeout.nextExpired = null;
+                try {
+                    timeout.executor.execute(timeout);
+                }
+                catch (RejectedExecutionException e) {
+                    logger.debug("timer task rejected, executor shut down");
+                }
+            }
+        }
+    }
+
+    final class Timeout implements Runnable {
+        private final Runnable task;
+        private final Executor executor;
+        private final long period;
+
+        //all guarded by the timer
+        private long deadline;
+        private long remainingRounds;
+        private int bucket;
+        private Timeout prev;
+        private Timeout next;
+        private Timeout nextExpired;
+        private volatile int state = INIT;
+
+        private Timeout(Runnable task, Executor executor, long period) {
+            checkNotNull(task);
+            checkNotNull(executor);
+            this.task = task;
+            this.executor = executor;
+            this.period = period;
+        }
+
+        /**
+         * @return false if already cancelled
+         */
+        boolean cancel() {
+            return HashedWheelTimer.this.cancel(this);
+        }
+
+        boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        boolean isPending() {
+            return state == PENDING;
+        }
+
+        @Override
+        public void run() {
+            if (state == CANCELLED) {
+                return;
+            }
+            try {
+                task.run();
+            }
+            catch (Throwable t) {
+                logger.error("task error", t);
+            }
+            finally {
+                if (period > 0) {
+                    reschedulePeriodic(this);
+                }
+            }
+        }
+    }
+
+}
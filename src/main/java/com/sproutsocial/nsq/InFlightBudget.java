@@ -0,0 +1,212 @@
+package com.sproutsocial.nsq;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.sproutsocial.nsq.Util.checkArgument;
+
+/**
+ * Client wide limit on messages in flight, shared by all subscriptions in proportion to their weight (weighted max-min fairness).
+ * A subscription using less than its share keeps what it uses plus some headroom, the rest is lent to busy subscriptions.
+ * When a subscription fills its allocation it is treated as busy again and reclaims its full share at the next rebalance.
+ * Each subscription's allocation caps its effective maxInFlight, it never raises it above the subscription maxInFlight.
+ */
+@ThreadSafe
+class InFlightBudget {
+
+    private final Client client;
+    @GuardedBy("this") private final List<Subscription> subscriptions = new ArrayList<Subscription>();
+    @GuardedBy("this") private int maxInFlight = 0;
+    @GuardedBy("this") private HashedWheelTimer.Timeout rebalanceTask;
+    private final Object rebalanceLock = new Object();
+    @GuardedBy("rebalanceLock") private int rotation = 0;
+
+    private static final int REBALANCE_MILLIS = 1000;
+    private static final Logger logger = LoggerFactory.getLogger(InFlightBudget.class);
+
+    InFlightBudget(Client client) {
+        this.client = client;
+    }
+
+    synchronized int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * @param maxInFlight 0 removes the limit
+     */
+    void setMaxInFlight(int maxInFlight) {
+        checkArgument(maxInFlight >= 0);
+        List<Subscription> subs;
+        synchronized (this) {
+            this.maxInFlight = maxInFlight;
+            subs = new ArrayList<Subscription>(subscriptions);
+            if (maxInFlight == 0) {
+                Util.cancel(rebalanceTask);
+                rebalanceTask = null;
+            }
+            else if (rebalanceTask == null) {
+                rebalanceTask = client.scheduleAtFixedRate(new Runnable() {
+                    public void run() {
+                        rebalance();
+                    }
+                }, REBALANCE_MILLIS, REBALANCE_MILLIS, false);
+            }
+        }
+        if (maxInFlight == 0) {
+            for (Subscription sub : subs) {
+                sub.setBudgetLimit(-1);
+            }
+        }
+        else {
+            rebalance();
+        }
+    }
+
+    /**
+     * The new subscription starts with a small allocation plus headroom, it grows to its share as it fills it.
+     */
+    void add(Subscription sub) {
+        synchronized (this) {
+            subscriptions.add(sub);
+        }
+        rebalance();
+    }
+
+    synchronized void remove(Subscription sub) {
+        subscriptions.remove(sub);
+    }
+
+    /**
+     * Reads and sets subscription limits without holding this, so the subscription lock is never taken inside ours.
+     * rebalanceLock keeps concurrent rebalances from applying limits out of order.
+     */
+    void rebalance() {
+        synchronized (rebalanceLock) {
+            int budget;
+            List<Subscription> subs;
+            synchronized (this) {
+                budget = maxInFlight;
+                subs = new ArrayList<Subscription>(subscriptions);
+            }
+            if (budget == 0 || subs.isEmpty()) {
+                return;
+            }
+            int n = subs.size();
+            int[] demand = new int[n];
+            int[] weight = new int[n];
+            int[] max = new int[n];
+            for (int i = 0; i < n; i++) {
+                Subscription sub = subs.get(i);
+                demand[i] = getDemand(sub);
+                weight[i] = sub.getWeight();
+                max[i] = sub.getMaxInFlight();
+            }
+            int[] limit = allocate(budget, demand, weight, max, rotation++);
+            for (int i = 0; i < n; i++) {
+                subs.get(i).setBudgetLimit(limit[i]);
+            }
+            if (logger.isDebugEnabled()) {
+                logger.debug("in flight budget:{} limits:{} demand:{}", budget, Arrays.toString(limit), Arrays.toString(demand));
+            }
+        }
+    }
+
+    /**
+     * Water filling: subscriptions wanting less than their weighted share get what they want, the rest of the budget
+     * is split by weight among the others. If everyone is satisfied the rest is spread as headroom (up to each max) so
+     * growth does not wait for a rebalance. The limits never add up to more than budget, so with more busy subscriptions
+     * than budget some get 0. Rounding leftovers go one each by largest remainder, ties broken starting at
+     * offset so a different subscription wins each round.
+     */
+    static int[] allocate(int budget, int[] demand, int[] weight, int[] max, int offset) {
+        int n = demand.length;
+        int[] limit = new int[n];
+        boolean[] isSatisfied = new boolean[n];
+        int remaining = budget;
+        int unsatisfied = n;
+        boolean isChanged = true;
+        while (isChanged && unsatisfied > 0) {
+            isChanged = false;
+            long totalWeight = 0;
+            for (int i = 0; i < n; i++) {
+                if (!isSatisfied[i]) {
+                    totalWeight += weight[i];
+                }
+            }
+            for (int i = 0; i < n; i++) {
+                if (!isSatisfied[i] && demand[i] <= (double) remaining * weight[i] / totalWeight) {
+                    limit[i] = demand[i];
+                    isSatisfied[i] = true;
+                    remaining -= demand[i];
+                    unsatisfied--;
+                    isChanged = true;
+                }
+            }
+        }
+        if (unsatisfied > 0) {
+            long totalWeight = 0;
+            for (int i = 0; i < n; i++) {
+                if (!isSatisfied[i]) {
+                    totalWeight += weight[i];
+                }
+            }
+            long[] fraction = new long[n];
+            int leftover = remaining;
+            for (int i = 0; i < n; i++) {
+                if (!isSatisfied[i]) {
+                    long share = (long) remaining * weight[i];
+                    limit[i] = (int) (share / totalWeight);
+                    fraction[i] = share % totalWeight;
+                    leftover -= limit[i];
+                }
+            }
+            while (leftover > 0) {
+                int best = -1;
+                for (int j = 0; j < n; j++) {
+                    int i = (int) ((j + (long) (offset & Integer.MAX_VALUE)) % n);
+                    if (!isSatisfied[i] && fraction[i] >= 0 && (best < 0 || fraction[i] > fraction[best])) {
+                        best = i;
+                    }
+                }
+                limit[best]++;
+                fraction[best] = -1; //at most one each, the fractions add up to less than the number of subscriptions
+                leftover--;
+            }
+        }
+        else if (remaining > 0) {
+            long totalWeight = 0;
+            for (int i = 0; i < n; i++) {
+                totalWeight += weight[i];
+            }
+            int spare = remaining;
+            for (int i = 0; i < n; i++) {
+                int extra = (int) ((long) spare * weight[i] / totalWeight);
+                limit[i] = Math.max(limit[i], Math.min(limit[i] + extra, max[i]));
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * A subscription that filled at least 90% of its limit (and is not throttled by backpressure) wants its full maxInFlight.
+     * Otherwise it wants what is in flight plus 25%, at least one per connection so none are paused.
+     */
+    private static int getDemand(Subscription sub) {
+        int max = sub.getMaxInFlight();
+        int current = sub.getEffectiveMaxInFlight();
+        int inFlight = sub.getInFlightCount();
+        if (inFlight >= current * 0.9 && !sub.isThrottled()) {
+            return max;
+        }
+        int want = Math.max(inFlight + Math.max(1, inFlight / 4), sub.getConnectionCount());
+        return Math.max(Math.min(want, max), 1);
+    }
+
+}
@@ -0,0 +1,21 @@
+package com.sproutsocial.nsq;
+
+/**
+ * Receives per subscription latency histograms, see {@link Subscriber#setLatencyListener}.
+ * report is called on a client timer thread and slowMessage on the handler thread, neither should block.
+ */
+public interface LatencyListener {
+
+    /**
+     * Called once per report interval with what was recorded since the previous report.
+     */
+    void report(String topic, String channel, LatencyStats stats);
+
+    /**
+     * Called for a sample of messages that were handled later than the slow message threshold after they were published,
+     * see {@link Subscriber#setSlowMessageSampling}. All durations are in microseconds.
+     */
+    default void slowMessage(String topic, String channel, Message msg, long lagMicros, long queueWaitMicros, long handlerMicros) {
+    }
+
+}
@@ -0,0 +1,54 @@
+package com.sproutsocial.nsq;
+
+/**
+ * Latency histograms of one subscription over one report interval, all in microseconds.
+ */
+public class LatencyStats {
+
+    private final LatencyHistogram lag;
+    private final LatencyHistogram queueWait;
+    private final LatencyHistogram handler;
+    private final int slowMessages;
+
+    LatencyStats(LatencyHistogram lag, LatencyHistogram queueWait, LatencyHistogram handler, int slowMessages) {
+        this.lag = lag;
+        this.queueWait = queueWait;
+        this.handler = handler;
+        this.slowMessages = slowMessages;
+    }
+
+    /**
+     * Time from the nsqd message timestamp (when it was published, not when it was last requeued) until it was received.
+     * Includes clock skew between nsqd and this host.
+     */
+    public LatencyHistogram getLag() {
+        return lag;
+    }
+
+    /**
+     * Time from when the message was received until a handler thread started it.
+     */
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    /**
+     * Time the handler took to return, including handlers that threw.
+     */
+    public LatencyHistogram getHandler() {
+        return handler;
+    }
+
+    /**
+     * @return messages over the slow message threshold, including ones not passed to {@link LatencyListener#slowMessage}
+     */
+    public int getSlowMessages() {
+        return slowMessages;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("lag:[%s] queueWait:[%s] handler:[%s] slow:%d", lag, queueWait, handler, slowMessages);
+    }
+
+}
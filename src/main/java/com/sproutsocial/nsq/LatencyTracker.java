@@ -0,0 +1,75 @@
+package com.sproutsocial.nsq;
+
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records the latency of each message of a subscription and reports the histograms to the LatencyListener every interval.
+ */
+@ThreadSafe
+class LatencyTracker {
+
+    private final String topic;
+    private final String channel;
+    private final LatencyListener listener;
+    private final long slowThresholdMicros;
+    private final int maxSlowSamples;
+    private final LatencyHistogram lag = new LatencyHistogram();
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram handler = new LatencyHistogram();
+    private final AtomicInteger slowCount = new AtomicInteger();
+
+    private static final Logger logger = LoggerFactory.getLogger(LatencyTracker.class);
+
+    LatencyTracker(String topic, String channel, LatencyListener listener, int slowThresholdMillis, int maxSlowSamples) {
+        this.topic = topic;
+        this.channel = channel;
+        this.listener = listener;
+        this.slowThresholdMicros = TimeUnit.MILLISECONDS.toMicros(slowThresholdMillis);
+        this.maxSlowSamples = maxSlowSamples;
+    }
+
+    /**
+     * @return the lag in microseconds, pass it to handled along with the receive time
+     */
+    long received(NSQMessage msg) {
+        long lagMicros = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()) - TimeUnit.NANOSECONDS.toMicros(msg.getTimestamp());
+        lag.record(lagMicros);
+        return lagMicros;
+    }
+
+    /**
+     * The times are from System.nanoTime.
+     */
+    void handled(NSQMessage msg, long lagMicros, long receivedNanos, long startNanos, long doneNanos) {
+        long waitMicros = TimeUnit.NANOSECONDS.toMicros(startNanos - receivedNanos);
+        long handlerMicros = TimeUnit.NANOSECONDS.toMicros(doneNanos - startNanos);
+        queueWait.record(waitMicros);
+        handler.record(handlerMicros);
+        if (slowThresholdMicros > 0 && lagMicros + waitMicros + handlerMicros > slowThresholdMicros
+                && slowCount.incrementAndGet() <= maxSlowSamples) {
+            try {
+                listener.slowMessage(topic, channel, msg, lagMicros, waitMicros, handlerMicros);
+            }
+            catch (Exception e) {
+                logger.error("latency listener error", e);
+            }
+        }
+    }
+
+    void report() {
+        LatencyStats stats = new LatencyStats(lag.snapshotAndReset(), queueWait.snapshotAndReset(), handler.snapshotAndReset(),
+                slowCount.getAndSet(0));
+        try {
+            listener.report(topic, channel, stats);
+        }
+        catch (Exception e) {
+            logger.error("latency listener error", e);
+        }
+    }
+
+}
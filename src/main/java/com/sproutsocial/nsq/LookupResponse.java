@@ -34,6 +34,9 @@ class LookupResponse {
     static class Producer {
         private String broadcastAddress;
         private int tcpPort;
+        private int httpPort;
+        private List<String> topics;     //only in /nodes responses
+        private List<Boolean> tombstones; //only in /nodes responses, parallel to topics
 
         public String getBroadcastAddress() {
             return broadcastAddress;
@@ -51,11 +54,37 @@ class LookupResponse {
             this.tcpPort = tcpPort;
         }
 
+        public int getHttpPort() {
+            return httpPort;
+        }
+
+        public void setHttpPort(int httpPort) {
+            this.httpPort = httpPort;
+        }
+
+        public List<String> getTopics() {
+            return topics;
+        }
+
+        public void setTopics(List<String> topics) {
+            this.topics = topics;
+        }
+
+        public List<Boolean> getTombstones() {
+            return tombstones;
+        }
+
+        public void setTombstones(List<Boolean> tombstones) {
+            this.tombstones = tombstones;
+        }
+
         @Override
         public String toString() {
             return "Producer{" +
                     "broadcastAddress='" + broadcastAddress + '\'' +
                     ", tcpPort=" + tcpPort +
+                    ", httpPort=" + httpPort +
+                    ", topics=" + topics +
                     '}';
         }
     }
@@ -0,0 +1,15 @@
+package com.sproutsocial.nsq;
+
+/**
+ * Decides from the raw message body whether a message is handled at all, see {@link Subscriber#setMessageFilter}.
+ * Runs on the connection read thread before a Message is created, so it must be fast and must not block.
+ * The buffer is reused for the next message, it must not be kept.
+ */
+public interface MessageFilter {
+
+    /**
+     * @return false to finish the message without handling it
+     */
+    boolean accept(byte[] data, int offset, int length);
+
+}
@@ -1,6 +1,10 @@
 package com.sproutsocial.nsq;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 class NSQMessage implements Message {
 
@@ -10,6 +14,16 @@ class NSQMessage implements Message {
     private final byte[] data;
     private final String topic;
     private final SubConnection connection;
+    private final AtomicBoolean isResponded = new AtomicBoolean(false);
+    private volatile long handlerStart;
+    private volatile long lastTouch;
+    private Thread handlerThread;
+    private DedupFilter dedupFilter;
+    private long dedupHash;
+    private int dedupToken;
+    private Object event;
+
+    private static final Logger logger = LoggerFactory.getLogger(NSQMessage.class);
 
     NSQMessage(long timestamp, int attempts, String id, byte[] data, String topic, SubConnection connection) {
         this.timestamp = timestamp;
@@ -45,24 +59,55 @@ class NSQMessage implements Message {
         return topic;
     }
 
+    //only the first finish or requeue is sent, later ones (from a handler that passed its deadline) are ignored
+
     @Override
     public void finish() {
-        connection.finish(id);
+        if (markResponded()) {
+            connection.finish(id);
+            if (dedupFilter != null) {
+                dedupFilter.handled(dedupHash, dedupToken, true);
+            }
+            Events.endMessage(event, this, "FIN");
+        }
     }
 
     @Override
     public void requeue() {
-        connection.requeue(id);
+        if (markResponded()) {
+            connection.requeue(id);
+            if (dedupFilter != null) {
+                dedupFilter.handled(dedupHash, dedupToken, false);
+            }
+            Events.endMessage(event, this, "REQ");
+        }
     }
 
     @Override
     public void requeue(int delayMillis) {
-        connection.requeue(id, delayMillis);
+        if (markResponded()) {
+            connection.requeue(id, delayMillis);
+            if (dedupFilter != null) {
+                dedupFilter.handled(dedupHash, dedupToken, false);
+            }
+            Events.endMessage(event, this, "REQ");
+        }
     }
 
     @Override
     public void touch() {
-        connection.touch(id);
+        if (!isResponded.get()) {
+            connection.touch(id);
+            lastTouch = Util.clock();
+        }
+    }
+
+    private boolean markResponded() {
+        if (isResponded.compareAndSet(false, true)) {
+            return true;
+        }
+        logger.debug("message already finished or requeued, ignoring id:{}", id);
+        return false;
     }
 
     @Override
@@ -74,7 +119,57 @@ class NSQMessage implements Message {
         }
     }
 
+    /**
+     * Set on the read thread before dispatch, the pending key is recorded as seen when the message is finished
+     * and forgotten when it is requeued.
+     */
+    void setDedup(DedupFilter dedupFilter, long dedupHash, int dedupToken) {
+        this.dedupFilter = dedupFilter;
+        this.dedupHash = dedupHash;
+        this.dedupToken = dedupToken;
+    }
+
+    /**
+     * Set on the read thread before dispatch, the flight recorder span ends when the message is finished or requeued.
+     */
+    void setEvent(Object event) {
+        this.event = event;
+    }
+
     SubConnection getConnection() {
         return connection;
     }
+
+    void handlerStarted(long now, boolean isInterruptible) {
+        handlerStart = now;
+        lastTouch = now;
+        if (isInterruptible) {
+            synchronized (this) {
+                handlerThread = Thread.currentThread();
+            }
+        }
+    }
+
+    synchronized void handlerDone() {
+        handlerThread = null;
+    }
+
+    //synchronized with handlerDone so a thread that has moved on to another message is never interrupted
+    synchronized void interruptHandler() {
+        if (handlerThread != null) {
+            handlerThread.interrupt();
+        }
+    }
+
+    long getHandlerStart() {
+        return handlerStart;
+    }
+
+    long getLastTouch() {
+        return lastTouch;
+    }
+
+    void setLastTouch(long lastTouch) {
+        this.lastTouch = lastTouch;
+    }
 }
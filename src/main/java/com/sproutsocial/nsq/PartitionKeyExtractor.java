@@ -0,0 +1,15 @@
+package com.sproutsocial.nsq;
+
+/**
+ * Extracts the key that orders messages in partitioned dispatch, see {@link Subscriber#setPartitionedDispatch}.
+ * Called on the connection read thread so it must be fast, it must be thread safe.
+ */
+public interface PartitionKeyExtractor {
+
+    /**
+     * @return the key, e.g. an entity id. Messages with equal keys are handled one at a time in delivery order.
+     * null means the message has no ordering requirement.
+     */
+    Object getKey(Message msg);
+
+}
@@ -0,0 +1,190 @@
+package com.sproutsocial.nsq;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Hands messages to the handler executor through a fixed number of serial lanes, picked by the hash of the message key.
+ * A lane runs at most one message at a time in the order they were queued, so messages with the same key are handled
+ * in order while different keys run in parallel. Lanes do not own threads, each one has at most one task in the executor.
+ * When a lane queues maxLaneDepth messages the subscription maxInFlight is held at what is in flight then (at least one per
+ * connection, so the subscription does not go into low flight rotation) until the lane has drained to half of that,
+ * so a hot key cannot keep pulling messages that only wait behind it. Limits are applied outside the dispatcher lock.
+ */
+@ThreadSafe
+class PartitionedDispatcher {
+
+    private final Subscription subscription;
+    private final Executor executor;
+    private final PartitionKeyExtractor keyExtractor;
+    private final int maxLaneDepth;
+    @GuardedBy("this") private final Lane[] lanes;
+    @GuardedBy("this") private int fullLanes = 0;
+    private final Object limitLock = new Object();
+    @GuardedBy("limitLock") private boolean isThrottled = false;
+
+    private static final Logger logger = LoggerFactory.getLogger(PartitionedDispatcher.class);
+
+    PartitionedDispatcher(Subscription subscription, Executor executor, int laneCount, PartitionKeyExtractor keyExtractor, int maxLaneDepth) {
+        this.subscription = subscription;
+        this.executor = executor;
+        this.keyExtractor = keyExtractor;
+        this.maxLaneDepth = maxLaneDepth;
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            lanes[i] = new Lane();
+        }
+    }
+
+    void execute(Message msg, Runnable task) {
+        Object key = null;
+        try {
+            key = keyExtractor.getKey(msg);
+        }
+        catch (Exception e) {
+            logger.error("partition key error, handling message unordered", e);
+        }
+        int index = key != null ? (key.hashCode() & Integer.MAX_VALUE) % lanes.length : ThreadLocalRandom.current().nextInt(lanes.length);
+        boolean isStart;
+        boolean isChanged = false;
+        synchronized (this) {
+            Lane lane = lanes[index];
+            lane.queue.add(task);
+            if (!lane.isFull && maxLaneDepth > 0 && lane.queue.size() >= maxLaneDepth) {
+                lane.isFull = true;
+                if (fullLanes++ == 0) {
+                    logger.info("partition lane:{} has {} messages queued, throttling {}", index, lane.queue.size(), subscription);
+                    isChanged = true;
+                }
+            }
+            isStart = !lane.isRunning;
+            lane.isRunning = true;
+        }
+        if (isChanged) {
+            applyLaneLimit();
+        }
+        if (isStart) {
+            try {
+                new LaneTask(index).submit();
+            }
+            catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    Lane lane = lanes[index];
+                    lane.queue.removeLastOccurrence(task);
+                    lane.isRunning = false;
+                    isChanged = updateFull(index, lane);
+                }
+                if (isChanged) {
+                    applyLaneLimit();
+                }
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * @return messages queued or running in each lane
+     */
+    synchronized int[] getLaneDepths() {
+        int[] depths = new int[lanes.length];
+        for (int i = 0; i < lanes.length; i++) {
+            depths[i] = lanes[i].queue.size();
+        }
+        return depths;
+    }
+
+    /**
+     * @return true if the last full lane drained
+     */
+    @GuardedBy("this")
+    private boolean updateFull(int index, Lane lane) {
+        if (lane.isFull && lane.queue.size() <= maxLaneDepth / 2) {
+            lane.isFull = false;
+            if (--fullLanes == 0) {
+                logger.info("partition lane:{} drained, resuming {}", index, subscription);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    //limitLock keeps the latest state applied last, the subscription lock is never taken inside ours
+    private void applyLaneLimit() {
+        synchronized (limitLock) {
+            boolean isFull;
+            synchronized (this) {
+                isFull = fullLanes > 0;
+            }
+            if (isFull != isThrottled) {
+                isThrottled = isFull;
+                subscription.setLaneLimit(isFull ? Math.max(subscription.getInFlightCount(), subscription.getConnectionCount()) : -1);
+            }
+        }
+    }
+
+    private class LaneTask extends QueuedTask {
+        private final int index;
+
+        LaneTask(int index) {
+            this.index = index;
+        }
+
+        void submit() {
+            markQueued();
+            executor.execute(this);
+        }
+
+        //runs one message then requeues itself, so a busy lane does not hold an executor thread from the others
+        //only the time waiting for an executor thread counts as queue wait, time behind the same key does not
+        public void run() {
+            subscription.recordQueueWait(getQueueWait());
+            Runnable task;
+            synchronized (PartitionedDispatcher.this) {
+                task = lanes[index].queue.peek();
+            }
+            try {
+                task.run();
+            }
+            finally {
+                boolean isMore;
+                boolean isDrained;
+                synchronized (PartitionedDispatcher.this) {
+                    Lane lane = lanes[index];
+                    lane.queue.poll();
+                    isDrained = updateFull(index, lane);
+                    isMore = !lane.queue.isEmpty();
+                    lane.isRunning = isMore;
+                }
+                if (isDrained) {
+                    applyLaneLimit();
+                }
+                if (isMore) {
+                    try {
+                        submit();
+                    }
+                    catch (RejectedExecutionException e) {
+                        //executor is shut down, the next execute restarts the lane with whatever is still queued
+                        logger.warn("partition lane:{} rejected by executor {}", index, subscription);
+                        synchronized (PartitionedDispatcher.this) {
+                            lanes[index].isRunning = false;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Lane {
+        private final ArrayDeque<Runnable> queue = new ArrayDeque<Runnable>();
+        private boolean isRunning;
+        private boolean isFull;
+    }
+
+}
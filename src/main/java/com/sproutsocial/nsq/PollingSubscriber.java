@@ -0,0 +1,147 @@
+package com.sproutsocial.nsq;
+
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.sproutsocial.nsq.Util.checkArgument;
+import static com.sproutsocial.nsq.Util.checkNotNull;
+
+/**
+ * Subscriber for applications that pull messages with {@link #poll} instead of having them pushed to a {@link MessageHandler}.
+ * Delivered messages are buffered in a queue per subscription, they are added directly from the connection read thread.
+ * The subscription maxInFlight is the queue capacity, so nsqd never sends more than the queue can hold and
+ * RDY credit is only returned as the caller drains the queue and finishes or requeues each polled message.
+ * The queue is also bounded by its capacity, a message that does not fit (nsqd sending past a lowered RDY) is requeued.
+ * Handler deadlines and auto touch apply from when a message is polled, time waiting in the queue does not count.
+ */
+@ThreadSafe
+public class PollingSubscriber extends Subscriber {
+
+    private final Map<SubscriptionId, MessageQueue> queues = new HashMap<SubscriptionId, MessageQueue>();
+
+    private static final Logger logger = LoggerFactory.getLogger(PollingSubscriber.class);
+
+    public PollingSubscriber(Client client, int lookupIntervalSecs, int maxLookupFailuresBeforeError, String... lookupHosts) {
+        super(client, lookupIntervalSecs, maxLookupFailuresBeforeError, lookupHosts);
+    }
+
+    public PollingSubscriber(int lookupIntervalSecs, String... lookupHosts) {
+        super(lookupIntervalSecs, lookupHosts);
+    }
+
+    public PollingSubscriber(String... lookupHosts) {
+        super(lookupHosts);
+    }
+
+    /**
+     * @param queueCapacity max messages buffered plus polled and not yet finished or requeued
+     */
+    public synchronized SubscriptionId subscribe(String topic, String channel, int queueCapacity) {
+        checkArgument(queueCapacity > 0);
+        MessageQueue queue = new MessageQueue(queueCapacity);
+        SubscriptionId subscriptionId = subscribe(topic, channel, queueCapacity, queue, true, true);
+        queues.put(subscriptionId, queue);
+        return subscriptionId;
+    }
+
+    /**
+     * Waits up to timeout for at least one message, then returns it along with any others already buffered.
+     * Every returned message must be finished or requeued, until then it counts against the queue capacity.
+     * @return up to maxMessages messages, empty if none arrived before the timeout
+     */
+    public List<Message> poll(SubscriptionId subscriptionId, int maxMessages, long timeout, TimeUnit unit) throws InterruptedException {
+        checkNotNull(subscriptionId);
+        checkArgument(maxMessages > 0);
+        MessageQueue queue;
+        synchronized (this) {
+            queue = queues.get(subscriptionId);
+        }
+        if (queue == null) {
+            throw new IllegalArgumentException("not subscribed: " + subscriptionId);
+        }
+        return queue.poll(maxMessages, timeout, unit);
+    }
+
+    /**
+     * @return the number of messages buffered and waiting to be polled
+     */
+    public synchronized int getQueueSize(SubscriptionId subscriptionId) {
+        MessageQueue queue = queues.get(subscriptionId);
+        return queue != null ? queue.messages.size() : 0;
+    }
+
+    @Override
+    synchronized Subscription unsubscribeSubscription(SubscriptionId subscriptionId) {
+        Subscription sub = super.unsubscribeSubscription(subscriptionId);
+        MessageQueue queue = queues.remove(subscriptionId);
+        if (queue != null) {
+            queue.requeueAll();
+        }
+        return sub;
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        synchronized (this) {
+            for (MessageQueue queue : queues.values()) {
+                queue.requeueAll();
+            }
+            queues.clear();
+        }
+    }
+
+    private static class MessageQueue implements MessageHandler {
+
+        private final BlockingQueue<Message> messages;
+        private final int capacity;
+
+        MessageQueue(int capacity) {
+            this.capacity = capacity;
+            this.messages = new LinkedBlockingQueue<Message>(capacity);
+        }
+
+        //called on the connection read thread, must never block
+        @Override
+        public void accept(Message msg) {
+            if (!messages.offer(msg)) {
+                logger.warn("poll queue full, capacity:{} requeueing id:{}", capacity, msg.getId());
+                msg.requeue();
+            }
+        }
+
+        List<Message> poll(int maxMessages, long timeout, TimeUnit unit) throws InterruptedException {
+            List<Message> batch = new ArrayList<Message>(Math.min(maxMessages, capacity));
+            Message first = messages.poll(timeout, unit);
+            if (first != null) {
+                batch.add(first);
+                messages.drainTo(batch, maxMessages - 1);
+            }
+            for (Message msg : batch) {
+                if (msg instanceof NSQMessage) {
+                    ((NSQMessage) msg).getConnection().polled((NSQMessage) msg);
+                }
+            }
+            return batch;
+        }
+
+        void requeueAll() {
+            List<Message> remaining = new ArrayList<Message>();
+            messages.drainTo(remaining);
+            for (Message msg : remaining) {
+                msg.requeue();
+            }
+            logger.debug("requeued {} buffered messages", remaining.size());
+        }
+    }
+
+}
@@ -14,34 +14,58 @@ class PubConnection extends Connection {
 
     public synchronized void publish(String topic, byte[] data) throws IOException {
         checkConnectionLiveness();
-        respQueue.clear();
-        writeCommand("PUB", topic);
-        write(data);
-        flushAndReadOK();
+        Object event = Events.beginPublish();
+        boolean isSuccess = false;
+        try {
+            respQueue.clear();
+            writeCommand("PUB", topic);
+            write(data);
+            flushAndReadOK();
+            isSuccess = true;
+        }
+        finally {
+            Events.endPublish(event, "PUB", topic, host, 1, data.length, isSuccess);
+        }
     }
 
     public synchronized void publishDeferred(String topic, byte[] data, long delayMillis) throws IOException {
         checkConnectionLiveness();
-        respQueue.clear();
-        writeCommand("DPUB", topic, Long.toString(delayMillis));
-        write(data);
-        flushAndReadOK();
+        Object event = Events.beginPublish();
+        boolean isSuccess = false;
+        try {
+            respQueue.clear();
+            writeCommand("DPUB", topic, Long.toString(delayMillis));
+            write(data);
+            flushAndReadOK();
+            isSuccess = true;
+        }
+        finally {
+            Events.endPublish(event, "DPUB", topic, host, 1, data.length, isSuccess);
+        }
     }
 
     public synchronized void publish(String topic, List<byte[]> dataList) throws IOException {
         checkConnectionLiveness();
-        respQueue.clear();
-        writeCommand("MPUB", topic);
+        Object event = Events.beginPublish();
+        boolean isSuccess = false;
         int bodySize = 4;
-        for (byte[] data : dataList) {
-            bodySize += data.length + 4;
+        try {
+            respQueue.clear();
+            writeCommand("MPUB", topic);
+            for (byte[] data : dataList) {
+                bodySize += data.length + 4;
+            }
+            out.writeInt(bodySize);
+            out.writeInt(dataList.size());
+            for (byte[] data : dataList) {
+                write(data);
+            }
+            flushAndReadOK();
+            isSuccess = true;
         }
-        out.writeInt(bodySize);
-        out.writeInt(dataList.size());
-        for (byte[] data : dataList) {
-            write(data);
+        finally {
+            Events.endPublish(event, "MPUB", topic, host, dataList.size(), bodySize, isSuccess);
         }
-        flushAndReadOK();
     }
 
     /**
@@ -9,8 +9,8 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
 
@@ -24,7 +24,7 @@ public class Publisher extends BasePubSub {
     private static final Logger logger = LoggerFactory.getLogger(Publisher.class);
     private final BalanceStrategy balanceStrategy;
     private final Map<String, Batcher> batchers = new HashMap<>();
-    private ScheduledExecutorService batchExecutor;
+    private ExecutorService batchExecutor;
 
     public Publisher(Client client, String nsqd, String failoverNsqd) {
         this(client, getBalanceStrategyBiFunction(nsqd, failoverNsqd));
@@ -159,9 +159,10 @@ public class Publisher extends BasePubSub {
         batchers.put(topic, batcher);
     }
 
-    synchronized ScheduledExecutorService getBatchExecutor() {
+    //batches are sent on their own thread so a slow publish does not hold up the client timer tasks
+    synchronized ExecutorService getBatchExecutor() {
         if (batchExecutor == null) {
-            batchExecutor = Executors.newScheduledThreadPool(1, Util.threadFactory("nsq-batch"));
+            batchExecutor = Executors.newSingleThreadExecutor(Util.threadFactory("nsq-batch"));
         }
         return batchExecutor;
     }
@@ -174,7 +175,7 @@ public class Publisher extends BasePubSub {
             Util.shutdownAndAwaitTermination(batchExecutor, 40, TimeUnit.MILLISECONDS);
         }
         if (client.isLonePublisher(this)) { // convenience, prevents needing to call client.stop() to stop all threads
-            Util.shutdownAndAwaitTermination(client.getSchedExecutor(), 40, TimeUnit.MILLISECONDS);
+            client.stopTimer(40);
         }
     }
 
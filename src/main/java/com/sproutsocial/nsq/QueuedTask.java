@@ -0,0 +1,25 @@
+package com.sproutsocial.nsq;
+
+/**
+ * A handler executor task that knows when it was queued. The backpressure check reads the task at the head of
+ * the executor queue, so the age of the oldest waiting message is known without tracking each message.
+ */
+abstract class QueuedTask implements Runnable {
+
+    private volatile long queuedAt;
+
+    /**
+     * Call right before handing the task to the executor.
+     */
+    void markQueued() {
+        queuedAt = Util.clock();
+    }
+
+    /**
+     * @return millis since {@link #markQueued}, how long the task waited when called as it starts running
+     */
+    long getQueueWait() {
+        return Util.clock() - queuedAt;
+    }
+
+}
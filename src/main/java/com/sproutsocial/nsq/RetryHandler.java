@@ -0,0 +1,62 @@
+package com.sproutsocial.nsq;
+
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static com.sproutsocial.nsq.Util.checkNotNull;
+
+/**
+ * Finishes each message after the handler returns and requeues it with a delay from the RetryPolicy when the handler throws.
+ * Only the failing message backs off, other messages keep flowing at full RDY.
+ * When the policy gives up the message goes to the subscriber FailedMessageHandler (if any) and is finished.
+ */
+@ThreadSafe
+public class RetryHandler implements MessageHandler {
+
+    private final MessageHandler handler;
+    private final RetryPolicy retryPolicy;
+
+    private static final Logger logger = LoggerFactory.getLogger(RetryHandler.class);
+
+    public RetryHandler(MessageHandler handler, RetryPolicy retryPolicy) {
+        checkNotNull(handler);
+        checkNotNull(retryPolicy);
+        this.handler = handler;
+        this.retryPolicy = retryPolicy;
+    }
+
+    public RetryHandler(final MessageDataHandler handler, RetryPolicy retryPolicy) {
+        this(new MessageHandler() {
+            @Override
+            public void accept(Message msg) {
+                handler.accept(msg.getData());
+            }
+        }, retryPolicy);
+    }
+
+    @Override
+    public void accept(Message msg) {
+        try {
+            handler.accept(msg);
+            msg.finish();
+        }
+        catch (Exception e) {
+            int delay = retryPolicy.getRequeueDelay(msg, e);
+            if (delay == RetryPolicy.GIVE_UP) {
+                logger.error("message error, giving up. attempts:{} id:{}", msg.getAttempts(), msg.getId(), e);
+                if (msg instanceof NSQMessage) {
+                    ((NSQMessage) msg).getConnection().failMessage((NSQMessage) msg, e);
+                }
+                else {
+                    msg.finish();
+                }
+            }
+            else {
+                logger.warn("message error, retrying in:{}ms attempts:{} id:{}", delay, msg.getAttempts(), msg.getId(), e);
+                msg.requeue(delay);
+            }
+        }
+    }
+
+}
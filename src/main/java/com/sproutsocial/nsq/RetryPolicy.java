@@ -0,0 +1,20 @@
+package com.sproutsocial.nsq;
+
+/**
+ * Decides how long a message waits before it is retried after its handler throws, see {@link RetryHandler}.
+ * Must be thread safe.
+ */
+public interface RetryPolicy {
+
+    /**
+     * Returned to stop retrying, the message goes to the FailedMessageHandler (if any) and is finished.
+     */
+    int GIVE_UP = -1;
+
+    /**
+     * @param msg the failed message, {@link Message#getAttempts} is 1 on the first delivery
+     * @return the requeue delay in milliseconds, or GIVE_UP
+     */
+    int getRequeueDelay(Message msg, Exception e);
+
+}
@@ -0,0 +1,266 @@
+package com.sproutsocial.nsq;
+
+import net.jcip.annotations.GuardedBy;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static com.sproutsocial.nsq.Util.checkArgument;
+import static com.sproutsocial.nsq.Util.checkNotNull;
+
+/**
+ * Scales the maxInFlight of a topic/channel subscription, and optionally the handler thread pool, with the channel backlog.
+ * Periodically polls /stats on every nsqd the subscription is connected to and sums the channel depth.
+ * While the depth is above scaleUpDepth and not shrinking, maxInFlight grows by half. Once it is at or below scaleDownDepth
+ * maxInFlight shrinks by a fifth. In between, or while a large backlog is draining, nothing changes.
+ * maxInFlight always stays within the given limits, the thread pool size follows it proportionally within its own limits.
+ * Each connection's depth is also passed to the adaptive RDY allocator (see {@link Subscriber#setAdaptiveRdy}).
+ */
+@ThreadSafe
+public class StatsAutoscaler {
+
+    private final Subscriber subscriber;
+    private final String topic;
+    private final String channel;
+    private final int minInFlight;
+    private final int maxInFlight;
+
+    @GuardedBy("this") private int pollIntervalSecs = 15;
+    @GuardedBy("this") private long scaleUpDepth = 100;
+    @GuardedBy("this") private long scaleDownDepth = 0;
+    @GuardedBy("this") private ThreadPoolExecutor executor;
+    @GuardedBy("this") private int minThreads;
+    @GuardedBy("this") private int maxThreads;
+    @GuardedBy("this") private int currentInFlight;
+    @GuardedBy("this") private long depth = -1;
+    @GuardedBy("this") private long lastPoll;
+    @GuardedBy("this") private HashedWheelTimer.Timeout pollTask;
+
+    private static final Logger logger = LoggerFactory.getLogger(StatsAutoscaler.class);
+
+    public StatsAutoscaler(Subscriber subscriber, String topic, String channel, int minInFlight, int maxInFlight) {
+        checkNotNull(subscriber);
+        checkNotNull(topic);
+        checkNotNull(channel);
+        checkArgument(minInFlight > 0 && minInFlight <= maxInFlight);
+        this.subscriber = subscriber;
+        this.topic = topic;
+        this.channel = channel;
+        this.minInFlight = minInFlight;
+        this.maxInFlight = maxInFlight;
+        this.currentInFlight = minInFlight;
+    }
+
+    /**
+     * Also scale the pool size of the handler executor (the one passed to {@link Client#setExecutor}) within these limits.
+     */
+    public synchronized void setExecutorLimits(ThreadPoolExecutor executor, int minThreads, int maxThreads) {
+        checkNotNull(executor);
+        checkArgument(minThreads > 0 && minThreads <= maxThreads);
+        this.executor = executor;
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+    }
+
+    public synchronized int getPollIntervalSecs() {
+        return pollIntervalSecs;
+    }
+
+    /**
+     * Takes effect on the next start. Defaults to 15.
+     */
+    public synchronized void setPollIntervalSecs(int pollIntervalSecs) {
+        checkArgument(pollIntervalSecs > 0);
+        this.pollIntervalSecs = pollIntervalSecs;
+    }
+
+    public synchronized long getScaleUpDepth() {
+        return scaleUpDepth;
+    }
+
+    /**
+     * Grow maxInFlight while the total depth is above this and not shrinking. Defaults to 100.
+     */
+    public synchronized void setScaleUpDepth(long scaleUpDepth) {
+        checkArgument(scaleUpDepth >= 0);
+        this.scaleUpDepth = scaleUpDepth;
+    }
+
+    public synchronized long getScaleDownDepth() {
+        return scaleDownDepth;
+    }
+
+    /**
+     * Shrink maxInFlight while the total depth is at or below this. Defaults to 0.
+     */
+    public synchronized void setScaleDownDepth(long scaleDownDepth) {
+        checkArgument(scaleDownDepth >= 0);
+        this.scaleDownDepth = scaleDownDepth;
+    }
+
+    /**
+     * @return total channel depth across connected nsqds at the last poll, -1 before the first poll
+     */
+    public synchronized long getDepth() {
+        return depth;
+    }
+
+    public synchronized int getCurrentMaxInFlight() {
+        return currentInFlight;
+    }
+
+    /**
+     * Sets maxInFlight (and the pool size) to the minimum, then starts polling.
+     */
+    public synchronized void start() {
+        if (pollTask != null) {
+            return;
+        }
+        apply(currentInFlight);
+        final Client client = subscriber.getClient();
+        pollTask = client.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                //http requests block, keep them off the timer threads
+                client.getConnectExecutor().execute(new Runnable() {
+                    public void run() {
+                        poll();
+                    }
+                });
+            }
+        }, pollIntervalSecs * 1000, pollIntervalSecs * 1000, true);
+    }
+
+    public synchronized void stop() {
+        Util.cancel(pollTask);
+        pollTask = null;
+    }
+
+    private void poll() {
+        Map<HostAndPort, SubConnection> cons = subscriber.getConnections(topic, channel);
+        if (cons.isEmpty()) {
+            return;
+        }
+        long total = 0;
+        for (Map.Entry<HostAndPort, SubConnection> entry : cons.entrySet()) {
+            long channelDepth = queryDepth(subscriber.getHttpHost(entry.getKey()));
+            entry.getValue().setChannelDepth(channelDepth);
+            if (channelDepth < 0) {
+                return; //partial totals would look like a drain, wait for the next poll
+            }
+            total += channelDepth;
+        }
+        scale(total);
+    }
+
+    private synchronized void scale(long total) {
+        long now = Util.clock();
+        double growthPerSec = depth < 0 ? 0 : (total - depth) * 1000.0 / Math.max(now - lastPoll, 1);
+        depth = total;
+        lastPoll = now;
+        int target = currentInFlight;
+        if (total > scaleUpDepth && growthPerSec >= 0) {
+            target = Math.min(maxInFlight, currentInFlight + Math.max(1, currentInFlight / 2));
+        }
+        else if (total <= scaleDownDepth) {
+            target = Math.max(minInFlight, currentInFlight - Math.max(1, currentInFlight / 5));
+        }
+        logger.debug("depth:{} growth:{}/s maxInFlight:{} target:{} topic:{} channel:{}", total, growthPerSec, currentInFlight, target, topic, channel);
+        if (target != currentInFlight) {
+            logger.info("scaling maxInFlight from:{} to:{} depth:{} topic:{} channel:{}", currentInFlight, target, total, topic, channel);
+            apply(target);
+        }
+    }
+
+    @GuardedBy("this")
+    private void apply(int inFlight) {
+        currentInFlight = inFlight;
+        subscriber.setMaxInFlight(topic, channel, inFlight);
+        if (executor != null) {
+            int threads = minThreads;
+            if (maxInFlight > minInFlight) {
+                threads += (int) ((long) (maxThreads - minThreads) * (inFlight - minInFlight) / (maxInFlight - minInFlight));
+            }
+            //the core size can never exceed the max size, so the order depends on the direction
+            if (threads > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(threads);
+                executor.setCorePoolSize(threads);
+            }
+            else {
+                executor.setCorePoolSize(threads);
+                executor.setMaximumPoolSize(threads);
+            }
+        }
+    }
+
+    /**
+     * @return the channel depth on one nsqd, 0 if the topic or channel does not exist there yet, -1 if the request failed
+     */
+    private long queryDepth(HostAndPort httpHost) {
+        BufferedReader in = null;
+        try {
+            URL url = new URL(String.format("http://%s/stats?format=json&topic=%s&channel=%s", httpHost,
+                    URLEncoder.encode(topic, "UTF-8"), URLEncoder.encode(channel, "UTF-8")));
+            HttpURLConnection con = (HttpURLConnection) url.openConnection();
+            con.setConnectTimeout(5000);
+            con.setReadTimeout(5000);
+            if (con.getResponseCode() != 200) {
+                logger.warn("stats failure. resp:{} nsqd:{}", con.getResponseCode(), httpHost);
+                con.disconnect();
+                return -1;
+            }
+            in = new BufferedReader(new InputStreamReader(con.getInputStream(), Util.UTF_8));
+            NsqdStats stats = subscriber.getClient().getGson().fromJson(in, NsqdStats.class);
+            if (stats.data != null) {
+                stats = stats.data; //nsq before version 1.0 wrapped the response with status_code/data
+            }
+            return stats.getDepth(topic, channel);
+        }
+        catch (Exception e) {
+            logger.warn("stats failure. nsqd:{} topic:{} channel:{}", httpHost, topic, channel, e);
+            return -1;
+        }
+        finally {
+            Util.closeQuietly(in);
+        }
+    }
+
+    private static class NsqdStats {
+        private NsqdStats data;
+        private List<TopicStats> topics;
+
+        long getDepth(String topic, String channel) {
+            if (topics != null) {
+                for (TopicStats topicStats : topics) {
+                    if (topic.equals(topicStats.topicName) && topicStats.channels != null) {
+                        for (ChannelStats channelStats : topicStats.channels) {
+                            if (channel.equals(channelStats.channelName)) {
+                                return channelStats.depth;
+                            }
+                        }
+                    }
+                }
+            }
+            return 0;
+        }
+    }
+
+    private static class TopicStats {
+        private String topicName;
+        private List<ChannelStats> channels;
+    }
+
+    private static class ChannelStats {
+        private String channelName;
+        private long depth;
+    }
+
+}
@@ -5,6 +5,10 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -19,13 +23,46 @@ class SubConnection extends Connection {
     private final String topic;
     private final int maxAttempts;
     private final int maxFlushDelayMillis;
+    private final int shedQueueWaitMillis;
+    private final int shedRequeueDelayMillis;
+    private final int autoTouchMaxMillis;
+    private final int handlerDeadlineMillis;
+    private final int deadlineRequeueDelayMillis;
+    private final boolean interruptOnDeadline;
+    private final DedupFilter dedupFilter;
+    private final MessageFilter messageFilter;
+    private final PartitionedDispatcher partitionedDispatcher;
+    private final LatencyTracker latencyTracker;
+    //reused by the read thread for filtered messages
+    private final byte[] idBuf = new byte[16];
+    private byte[] dataBuf = new byte[0];
+    private boolean isFilteredUnflushed = false;
+    private final Map<String, NSQMessage> handling = new ConcurrentHashMap<String, NSQMessage>();
     private int inFlight = 0;
-    private int maxInFlight = 0;
+    private int maxInFlight = 0; //RDY sent to nsqd
+    private int assignedMaxInFlight = 0; //RDY assigned by the subscription, before the backoff cap
+    private int backoffLimit = -1;
     private int maxUnflushed = 0;
 
     private long finishedCount = 0;
     private long requeuedCount = 0;
+    private long duplicateCount = 0;
+    private long filteredCount = 0;
 
+    //delivery stats for the adaptive RDY allocator
+    private long receivedCount = 0;
+    private long inFlightMillis = 0; //inFlight integrated over time since the last sample
+    private long lastInFlightChange = Util.clock();
+    private long lastSample = Util.clock();
+    private double deliveryRate = -1; //messages per milli, moving average, -1 until sampled
+    private double avgInFlight = 0;
+    private volatile long channelDepth = -1; //from nsqd /stats when polled, -1 if unknown
+    private volatile long lastMessageTime = 0;
+    private long lastRdyTime = 0; //when RDY last went from 0 to positive
+
+    private static final double DELIVERY_EWMA_WEIGHT = 0.5;
+
+    private static final byte[] FIN_PREFIX = "FIN ".getBytes(Util.US_ASCII);
     private static final Logger logger = LoggerFactory.getLogger(SubConnection.class);
 
     public SubConnection(Client client, HostAndPort host, Subscription subscription) {
@@ -37,6 +74,16 @@ class SubConnection extends Connection {
         this.topic = subscription.getTopic();
         this.maxAttempts = subscriber.getMaxAttempts();
         this.maxFlushDelayMillis = subscriber.getMaxFlushDelayMillis();
+        this.shedQueueWaitMillis = subscriber.getShedQueueWaitMillis();
+        this.shedRequeueDelayMillis = subscriber.getShedRequeueDelayMillis();
+        this.autoTouchMaxMillis = subscriber.getAutoTouchMaxMillis();
+        this.handlerDeadlineMillis = subscriber.getHandlerDeadlineMillis();
+        this.deadlineRequeueDelayMillis = subscriber.getHandlerDeadlineRequeueDelayMillis();
+        this.interruptOnDeadline = subscriber.isInterruptHandlerOnDeadline();
+        this.dedupFilter = subscription.getDedupFilter();
+        this.messageFilter = subscription.getMessageFilter();
+        this.partitionedDispatcher = subscription.getPartitionedDispatcher();
+        this.latencyTracker = subscription.getLatencyTracker();
 
         scheduleAtFixedRate(new Runnable() {
             public void run() {
@@ -47,6 +94,7 @@ class SubConnection extends Connection {
 
     public synchronized void finish(String id) {
         try {
+            handlingDone(id);
             writeCommand("FIN", id);
             finishedCount++;
             messageDone();
@@ -63,6 +111,7 @@ class SubConnection extends Connection {
 
     public synchronized void requeue(String id, int delayMillis) {
         try {
+            handlingDone(id);
             writeCommand("REQ", id, delayMillis);
             requeuedCount++;
             messageDone();
@@ -75,7 +124,7 @@ class SubConnection extends Connection {
 
     @GuardedBy("this")
     private void messageDone() throws IOException {
-        inFlight = Math.max(inFlight - 1, 0);
+        addInFlight(-1);
         if (inFlight == 0 && isStopping) {
             flushAndClose();
         }
@@ -95,6 +144,78 @@ class SubConnection extends Connection {
         }
     }
 
+    /**
+     * Checks every message whose handler is running. Messages past the handler deadline are requeued and their handler
+     * is interrupted, a late finish or requeue from that handler is ignored.
+     * Otherwise sends TOUCH for messages that have gone half the msgTimeout since they were last touched,
+     * until the handler has run for autoTouchMaxMillis. Everything is written with a single flush.
+     * Called periodically by the client for all connections.
+     */
+    synchronized void checkHandling(long now) {
+        if (handling.isEmpty()) {
+            return;
+        }
+        try {
+            int touchAfter = msgTimeout / 2;
+            int touched = 0;
+            int expired = 0;
+            for (Iterator<NSQMessage> iter = handling.values().iterator(); iter.hasNext(); ) {
+                NSQMessage msg = iter.next();
+                long running = now - msg.getHandlerStart();
+                if (handlerDeadlineMillis > 0 && running > handlerDeadlineMillis) {
+                    logger.warn("message handler passed deadline:{} ms, requeueing id:{} {}", handlerDeadlineMillis, msg.getId(), this);
+                    iter.remove();
+                    msg.requeue(deadlineRequeueDelayMillis);
+                    msg.interruptHandler();
+                    expired++;
+                }
+                else if (autoTouchMaxMillis > 0 && running > autoTouchMaxMillis) {
+                    logger.warn("message handler running for over:{} ms, no longer touching id:{} {}", autoTouchMaxMillis, msg.getId(), this);
+                    iter.remove();
+                }
+                else if (autoTouchMaxMillis > 0 && now - msg.getLastTouch() >= touchAfter) {
+                    writeCommand("TOUCH", msg.getId());
+                    msg.setLastTouch(now);
+                    touched++;
+                }
+            }
+            if (touched > 0 || expired > 0) {
+                logger.debug("auto touched:{} deadline requeued:{} {}", touched, expired, this);
+                flush();
+            }
+        }
+        catch (IOException e) {
+            logger.error("check handling error. {}", stateDesc(), e);
+            close();
+        }
+    }
+
+    private boolean isTrackingHandlers() {
+        return autoTouchMaxMillis > 0 || handlerDeadlineMillis > 0;
+    }
+
+    private void handlingStarted(NSQMessage msg, boolean isInterruptible) {
+        if (isTrackingHandlers()) {
+            msg.handlerStarted(Util.clock(), isInterruptible && interruptOnDeadline && handlerDeadlineMillis > 0);
+            handling.put(msg.getId(), msg);
+            client.startHandlerTimer();
+        }
+    }
+
+    /**
+     * Called when a buffered message is handed to the caller of {@link PollingSubscriber#poll}, handler deadlines and
+     * auto touch start from then, not from when it was received.
+     */
+    void polled(NSQMessage msg) {
+        handlingStarted(msg, false);
+    }
+
+    private void handlingDone(String id) {
+        if (isTrackingHandlers()) {
+            handling.remove(id);
+        }
+    }
+
     private synchronized void delayedFlush() {
         try {
             if (unflushedCount > 0 && Util.clock() - lastActionFlush > (maxFlushDelayMillis / 2) + 10) {
@@ -122,14 +243,32 @@ class SubConnection extends Connection {
     }
 
     public synchronized void setMaxInFlight(int maxInFlight, boolean isActive) {
+        assignedMaxInFlight = maxInFlight;
+        sendRdy(backoffLimit < 0 ? maxInFlight : Math.min(maxInFlight, backoffLimit), isActive);
+    }
+
+    /**
+     * Caps RDY below what the subscription assigns while this connection is in backoff, -1 removes the cap.
+     */
+    synchronized void setBackoffLimit(int backoffLimit) {
+        this.backoffLimit = backoffLimit;
+        sendRdy(backoffLimit < 0 ? assignedMaxInFlight : Math.min(assignedMaxInFlight, backoffLimit), true);
+    }
+
+    @GuardedBy("this")
+    private void sendRdy(int maxInFlight, boolean isActive) {
         try {
             if (this.maxInFlight == maxInFlight) {
                 return;
             }
+            if (this.maxInFlight == 0 && maxInFlight > 0) {
+                lastRdyTime = Util.clock();
+            }
             this.maxInFlight = maxInFlight;
             maxUnflushed = Math.min(maxInFlight / 3, 150); //should this be configurable?  FIN id\n is 21 bytes
             logger.debug("RDY:{} {}", maxInFlight, toString());
             writeCommand("RDY", maxInFlight);
+            Events.rdy(host, topic, maxInFlight);
             if (isActive) {
                 flush();
             }
@@ -155,12 +294,23 @@ class SubConnection extends Connection {
         flushAndReadOK();
     }
 
-    private void failMessage(final NSQMessage msg) {
+    void failMessage(NSQMessage msg) {
+        failMessage(msg, null);
+    }
+
+    /**
+     * @param error the last handler error, if known
+     */
+    void failMessage(final NSQMessage msg, final Exception error) {
+        if (failedMessageHandler != null && failedMessageHandler.isFinishedByHandler()) {
+            failedMessageHandler.failed(subscription.getTopic(), subscription.getChannel(), msg, error);
+            return;
+        }
         if (failedMessageHandler != null) {
             handlerExecutor.execute(new Runnable() {
                 public void run() {
                     try {
-                        failedMessageHandler.failed(subscription.getTopic(), subscription.getChannel(), msg);
+                        failedMessageHandler.failed(subscription.getTopic(), subscription.getChannel(), msg, error);
                     }
                     catch (Throwable t) {
                         logger.error("failed message error", t);
@@ -168,35 +318,151 @@ class SubConnection extends Connection {
                 }
             });
         }
-        finish(msg.getId());
+        msg.finish();
+    }
+
+    //acks written on the read thread (inline handlers, filtered messages) go out once it has caught up,
+    //instead of waiting for the flush timer
+    @Override
+    protected void onReadIdle() {
+        if (subscription.isDispatchInline() || isFilteredUnflushed) {
+            synchronized (this) {
+                isFilteredUnflushed = false;
+                if (unflushedCount > 0) {
+                    try {
+                        flush();
+                    }
+                    catch (IOException e) {
+                        logger.error("flush error. {}", stateDesc(), e);
+                        close();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * With a message filter the body is read into reused buffers and rejected messages are finished right here,
+     * only accepted messages are copied into a Message.
+     */
+    @Override
+    protected void onMessageFrame(int size) throws IOException {
+        if (messageFilter == null) {
+            super.onMessageFrame(size);
+            return;
+        }
+        long timestamp = in.readLong();
+        int attempts = in.readUnsignedShort();
+        in.readFully(idBuf);
+        int length = size - 26;
+        if (dataBuf.length < length) {
+            dataBuf = new byte[Math.max(length, dataBuf.length * 2)];
+        }
+        in.readFully(dataBuf, 0, length);
+        boolean isAccepted;
+        try {
+            isAccepted = messageFilter.accept(dataBuf, 0, length);
+        }
+        catch (Throwable t) {
+            logger.error("message filter error, handling message", t);
+            isAccepted = true;
+        }
+        if (isAccepted) {
+            onMessage(timestamp, attempts, new String(idBuf, Util.US_ASCII), Arrays.copyOf(dataBuf, length));
+        }
+        else {
+            finishFiltered();
+        }
+    }
+
+    private synchronized void finishFiltered() throws IOException {
+        out.write(FIN_PREFIX);
+        out.write(idBuf);
+        out.write('\n');
+        filteredCount++;
+        isFilteredUnflushed = true;
+        checkFlush();
     }
 
     @Override
     protected void onMessage(long timestamp, int attempts, String id, byte[] data) {
         final NSQMessage msg = new NSQMessage(timestamp, attempts, id, data, topic, this);
+        msg.setEvent(Events.beginMessage());
         synchronized (this) {
-            inFlight++;
+            addInFlight(1);
+            receivedCount++;
+        }
+        final long receivedNanos = latencyTracker != null ? System.nanoTime() : 0;
+        final long lagMicros = latencyTracker != null ? latencyTracker.received(msg) : 0;
+        lastMessageTime = Util.clock();
+        if (dedupFilter != null && isDuplicate(msg)) {
+            return;
         }
         if (msg.getAttempts() >= maxAttempts) {
             failMessage(msg);
         }
+        else if (subscription.isDispatchInline()) {
+            long handlerStart = 0;
+            try {
+                if (!subscription.isPolled()) {
+                    handlingStarted(msg, false);
+                }
+                handlerStart = latencyTracker != null ? System.nanoTime() : 0;
+                handler.accept(msg);
+            }
+            catch (Throwable t) {
+                logger.error("message error", t);
+            }
+            finally {
+                if (handlerStart != 0) {
+                    latencyTracker.handled(msg, lagMicros, receivedNanos, handlerStart, System.nanoTime());
+                }
+            }
+        }
         else {
-            handlerExecutor.execute(new Runnable() {
+            QueuedTask task = new QueuedTask() {
                 public void run() {
+                    long handlerStart = 0;
                     try {
+                        //partitioned lanes record their own executor wait and never shed, that would break key order
+                        if (partitionedDispatcher == null) {
+                            long queueWait = getQueueWait();
+                            subscription.recordQueueWait(queueWait);
+                            if (shedQueueWaitMillis > 0 && queueWait > shedQueueWaitMillis) {
+                                logger.debug("shedding message, queued for:{} {}", queueWait, SubConnection.this);
+                                msg.requeue(shedRequeueDelayMillis);
+                                return;
+                            }
+                        }
+                        handlingStarted(msg, true);
+                        handlerStart = latencyTracker != null ? System.nanoTime() : 0;
                         handler.accept(msg);
                     }
                     catch (Throwable t) {
                         logger.error("message error", t);
                     }
+                    finally {
+                        msg.handlerDone();
+                        if (handlerStart != 0) {
+                            latencyTracker.handled(msg, lagMicros, receivedNanos, handlerStart, System.nanoTime());
+                        }
+                    }
                 }
-            });
+            };
+            if (partitionedDispatcher != null) {
+                partitionedDispatcher.execute(msg, task);
+            }
+            else {
+                task.markQueued();
+                handlerExecutor.execute(task);
+            }
         }
     }
 
     @Override
     public void close() {
         super.close();
+        handling.clear();
         //be paranoid about locks, we only care that this happens sometime soon
         client.getSchedExecutor().execute(new Runnable() {
             public void run() {
@@ -227,14 +493,136 @@ class SubConnection extends Connection {
             // 5 seconds, we force the connection to close. This matches similar behavior of the Go nsq
             // client.
             logger.debug("messages still in flight for sub:{}, inFlight:{} delaying closing connection by 5 seconds", this, inFlight);
-            client.getSchedExecutor().schedule(this::flushAndClose, 5, TimeUnit.SECONDS);
+            client.schedule(this::flushAndClose, (int) TimeUnit.SECONDS.toMillis(5));
+        }
+    }
+
+    public Subscription getSubscription() {
+        return subscription;
+    }
+
+    //finishes duplicates of finished messages and requeues duplicates of messages still being handled
+    private boolean isDuplicate(NSQMessage msg) {
+        long hash;
+        try {
+            hash = dedupFilter.hash(msg);
+        }
+        catch (Throwable t) {
+            logger.error("dedup key error, delivering message", t);
+            return false;
+        }
+        //nsqd ids are unique, so a first delivery keyed by id can only match through a Bloom false positive
+        boolean isPossibleDuplicate = !dedupFilter.isKeyedById() || msg.getAttempts() > 1;
+        if (isPossibleDuplicate && dedupFilter.mightContain(hash)) {
+            synchronized (this) {
+                duplicateCount++;
+            }
+            logger.debug("finishing duplicate message id:{} {}", msg.getId(), this);
+            msg.finish();
+            return true;
+        }
+        int token = dedupFilter.startHandling(hash);
+        if (token < 0) {
+            synchronized (this) {
+                duplicateCount++;
+            }
+            logger.debug("requeueing duplicate of a message still being handled id:{} {}", msg.getId(), this);
+            msg.requeue(msgTimeout);
+            return true;
         }
+        msg.setDedup(dedupFilter, hash, token);
+        return false;
+    }
+
+    @GuardedBy("this")
+    private void addInFlight(int delta) {
+        long now = Util.clock();
+        inFlightMillis += inFlight * (now - lastInFlightChange);
+        lastInFlightChange = now;
+        inFlight = Math.max(inFlight + delta, 0);
+    }
+
+    /**
+     * Folds deliveries and in flight time since the last call into the moving averages used by the adaptive RDY allocator.
+     */
+    synchronized void sampleDelivery() {
+        addInFlight(0);
+        long now = lastInFlightChange;
+        long elapsed = now - lastSample;
+        if (elapsed <= 0) {
+            return;
+        }
+        double rate = receivedCount / (double) elapsed;
+        double inFlightAvg = inFlightMillis / (double) elapsed;
+        if (deliveryRate < 0) {
+            deliveryRate = rate;
+            avgInFlight = inFlightAvg;
+        }
+        else {
+            deliveryRate = DELIVERY_EWMA_WEIGHT * rate + (1 - DELIVERY_EWMA_WEIGHT) * deliveryRate;
+            avgInFlight = DELIVERY_EWMA_WEIGHT * inFlightAvg + (1 - DELIVERY_EWMA_WEIGHT) * avgInFlight;
+        }
+        receivedCount = 0;
+        inFlightMillis = 0;
+        lastSample = now;
+    }
+
+    synchronized boolean isDeliverySampled() {
+        return deliveryRate >= 0;
+    }
+
+    /**
+     * @return moving average of messages received per second
+     */
+    synchronized double getDeliveryRate() {
+        return Math.max(deliveryRate, 0) * 1000;
+    }
+
+    /**
+     * RDY needed to keep up the current delivery rate (Little's law): the messages held while handling
+     * plus the credit used up during a round trip to nsqd.
+     */
+    synchronized double getRdyDemand() {
+        return avgInFlight + Math.max(deliveryRate, 0) * connectRtt;
+    }
+
+    /**
+     * @return true if in flight messages stayed near RDY, so delivery was limited by RDY and nsqd likely has a backlog
+     */
+    synchronized boolean isRdyBound() {
+        return maxInFlight > 0 && avgInFlight >= maxInFlight * 0.9;
+    }
+
+    /**
+     * @return messages waiting in the channel on this nsqd when stats were last polled, -1 if unknown
+     */
+    long getChannelDepth() {
+        return channelDepth;
+    }
+
+    void setChannelDepth(long channelDepth) {
+        this.channelDepth = channelDepth;
+    }
+
+    long getLastMessageTime() {
+        return lastMessageTime;
+    }
+
+    synchronized long getLastRdyTime() {
+        return lastRdyTime;
     }
 
     public synchronized int getCurrentInFlightCount() {
         return inFlight;
     }
 
+    /**
+     * @return messages rejected by the {@link MessageFilter} and finished on the read thread
+     */
+    synchronized long getFilteredCount() {
+        return filteredCount;
+    }
+
     @Override
     public String toString() {
         return String.format("SubCon:%s %s.%s", host.getHost(), subscription.getTopic(), subscription.getChannel());
@@ -242,8 +630,8 @@ class SubConnection extends Connection {
 
     @Override
     public synchronized String stateDesc() {
-        return String.format("%s inFlight:%d maxInFlight:%d fin:%d req:%d",
-                super.stateDesc(), inFlight, maxInFlight, finishedCount, requeuedCount);
+        return String.format("%s inFlight:%d maxInFlight:%d fin:%d req:%d dup:%d filtered:%d",
+                super.stateDesc(), inFlight, maxInFlight, finishedCount, requeuedCount, duplicateCount, filteredCount);
     }
 
 }
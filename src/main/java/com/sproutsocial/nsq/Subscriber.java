@@ -11,16 +11,21 @@ import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.file.Path;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static com.sproutsocial.nsq.Util.checkArgument;
@@ -33,15 +38,47 @@ public class Subscriber extends BasePubSub {
     private final List<Subscription> subscriptions = new ArrayList<Subscription>();
     private final AtomicLong subscriptionIdCounter = new AtomicLong(0L);
     private final int lookupIntervalSecs;
-    private int maxLookupFailuresBeforeError;
+    private final int maxLookupFailuresBeforeError;
     private int defaultMaxInFlight = 200;
     private int maxFlushDelayMillis = 2000;
     private int maxAttempts = Integer.MAX_VALUE;
     private FailedMessageHandler failedMessageHandler = null;
-    private final Map<String, Integer> failures = new HashMap<String, Integer>();
+    private int backpressureQueueSize = 0;
+    private int backpressureQueueWaitMillis = 0;
+    private int shedQueueWaitMillis = 0;
+    private int shedRequeueDelayMillis = 0;
+    private boolean isBackpressureScheduled = false;
+    private int autoTouchMaxMillis = 0;
+    private int handlerDeadlineMillis = 0;
+    private int handlerDeadlineRequeueDelayMillis = 0;
+    private boolean interruptHandlerOnDeadline = true;
+    private int reconnectInitialDelayMillis = 100;
+    private int reconnectMaxDelayMillis = 30000;
+    private boolean adaptiveRdy = false;
+    private RetryPolicy retryPolicy = null;
+    private int dedupWindowSecs = 0;
+    private int dedupExpectedKeys;
+    private double dedupFalsePositiveRate;
+    private DedupKeyExtractor dedupKeyExtractor = null;
+    private MessageFilter messageFilter = null;
+    private int partitionLanes = 0;
+    private PartitionKeyExtractor partitionKeyExtractor = null;
+    private int maxLaneDepth = 100;
+    private LatencyListener latencyListener = null;
+    private int latencyReportIntervalSecs;
+    private int slowMessageThresholdMillis = 0;
+    private int maxSlowMessageSamples;
+    private final Map<String, Integer> failures = new ConcurrentHashMap<String, Integer>();
+    private final Map<String, TopicLookup> topicLookups = new ConcurrentHashMap<String, TopicLookup>();
+    private final AtomicBoolean isDiscovering = new AtomicBoolean(false);
+    private volatile Map<String, Set<HostAndPort>> nodesSnapshot = Collections.emptyMap();
+    private boolean useNodesDiscovery = false;
+    private volatile TopologyCache topologyCache;
+    private final Map<HostAndPort, Integer> httpPorts = new ConcurrentHashMap<HostAndPort, Integer>();
 
     private static final int DEFAULT_LOOKUP_INTERVAL_SECS = 60;
     private static final int DEFAULT_MAX_LOOKUP_FAILURES_BEFORE_ERROR = 5;
+    private static final int BACKPRESSURE_CHECK_MILLIS = 1000;
 
     private static final Logger logger = LoggerFactory.getLogger(Subscriber.class);
 
@@ -73,7 +110,14 @@ public class Subscriber extends BasePubSub {
         return subscribe(topic, channel, defaultMaxInFlight, handler);
     }
 
+    /**
+     * The message is finished when the handler returns. If it throws, the message is requeued according to the
+     * retry policy (see {@link #setRetryPolicy}), or with a {@link BackoffHandler} when no policy is set.
+     */
     public synchronized SubscriptionId subscribe(String topic, String channel, final MessageDataHandler handler) {
+        if (retryPolicy != null) {
+            return subscribe(topic, channel, defaultMaxInFlight, new RetryHandler(handler, retryPolicy));
+        }
         return subscribe(topic, channel, defaultMaxInFlight, new BackoffHandler(new MessageHandler() {
             @Override
             public void accept(Message msg) {
@@ -86,21 +130,62 @@ public class Subscriber extends BasePubSub {
      * Subscribe to a topic.
      * If the configured executor is multi-threaded and maxInFlight > 1 (the defaults)
      * then the MessageHandler must be thread safe.
+     * Subscribing again to the same topic and channel shares the existing subscription and its connections,
+     * maxInFlight is added to it and messages are split between the handlers in proportion to their maxInFlight.
      *
      * @returns a {@link SubscriptionId} that can be passed back to an {@link Subscriber#unsubscribe} call.
      */
     public synchronized SubscriptionId subscribe(String topic, String channel, int maxInFlight, MessageHandler handler) {
+        return subscribe(topic, channel, maxInFlight, handler, false);
+    }
+
+    /**
+     * Subscribe with optional inline dispatch. Inline dispatch calls the handler directly on the connection read thread
+     * instead of handing the message to the executor, and acks are flushed from that thread as soon as nsqd has nothing
+     * more buffered. This gives the lowest latency for handlers that take microseconds (filtering, routing, counting).
+     * The handler must be quick and must never block, while it runs no other message, heartbeat or response is read
+     * from that nsqd. Backpressure and shedding do not apply, a handler deadline requeues but does not interrupt the handler.
+     */
+    public synchronized SubscriptionId subscribe(String topic, String channel, int maxInFlight, MessageHandler handler, boolean dispatchInline) {
+        return subscribe(topic, channel, maxInFlight, handler, dispatchInline, false);
+    }
+
+    /**
+     * @param isPolled the handler only buffers messages, handler deadlines and auto touch start when they are polled
+     */
+    synchronized SubscriptionId subscribe(String topic, String channel, int maxInFlight, MessageHandler handler, boolean dispatchInline, boolean isPolled) {
         checkNotNull(topic);
         checkNotNull(channel);
         checkNotNull(handler);
         client.addSubscriber(this);
         final SubscriptionId subscriptionId = SubscriptionId.fromCounter(subscriptionIdCounter);
+        for (Subscription existing : subscriptions) {
+            //a drained subscription is on its way out, adding to it would start it pulling messages again
+            if (existing.getTopic().equals(topic) && existing.getChannel().equals(channel) && existing.isDispatchInline() == dispatchInline
+                    && existing.isPolled() == isPolled && existing.getMaxInFlight() > 0) {
+                existing.addHandle(subscriptionId, handler, maxInFlight);
+                if (handler instanceof BackoffHandler) {
+                    ((BackoffHandler)handler).setSubscription(existing);
+                }
+                logger.info("sharing subscription, handlers:{} {}", existing.getHandleCount(), existing);
+                return subscriptionId;
+            }
+        }
         final Subscription sub = new Subscription(subscriptionId, client, topic, channel, handler, this, maxInFlight);
+        sub.setDispatchInline(dispatchInline);
+        sub.setPolled(isPolled);
         if (handler instanceof BackoffHandler) {
             ((BackoffHandler)handler).setSubscription(sub); //awkward
         }
         subscriptions.add(sub);
-        sub.checkConnections(lookupTopic(topic));
+        client.getInFlightBudget().add(sub);
+        TopologyCache cache = topologyCache;
+        Set<HostAndPort> cached = cache != null ? cache.get(topic) : Collections.<HostAndPort>emptySet();
+        if (!cached.isEmpty()) {
+            logger.info("connecting to cached producers:{} topic:{}", cached, topic);
+            sub.checkConnections(cached);
+        }
+        checkConnectionsAsync(sub, cached);
         return subscriptionId;
     }
 
@@ -121,7 +206,11 @@ public class Subscriber extends BasePubSub {
     synchronized Subscription unsubscribeSubscription(final SubscriptionId subscriptionId) {
         for (int i = 0; i < subscriptions.size(); i++) {
             final Subscription sub = subscriptions.get(i);
-            if (sub.getSubscriptionId().equals(subscriptionId)) {
+            if (sub.hasHandle(subscriptionId)) {
+                if (sub.removeHandle(subscriptionId)) {
+                    logger.info("removed handler from shared subscription, handlers:{} {}", sub.getHandleCount(), sub);
+                    return sub;
+                }
                 sub.stop();
                 return subscriptions.remove(i);
             }
@@ -153,66 +242,301 @@ public class Subscriber extends BasePubSub {
         }
     }
 
-    private synchronized void lookup() {
-        if (isStopping) {
-            return;
-        }
+    /**
+     * Sets the share of the client in flight budget (see {@link Client#setMaxInFlight}) for matching subscriptions,
+     * relative to the weight of other subscriptions. The default weight is 1.
+     */
+    public synchronized void setInFlightWeight(String topic, String channel, int weight) {
+        checkArgument(weight > 0);
         for (Subscription sub : subscriptions) {
-            sub.checkConnections(lookupTopic(sub.getTopic()));
+            if (sub.getTopic().equals(topic) && sub.getChannel().equals(channel)) {
+                sub.setWeight(weight);
+            }
         }
+        client.getInFlightBudget().rebalance();
     }
 
-    @GuardedBy("this")
-    protected Set<HostAndPort> lookupTopic(String topic) {
-        Set<HostAndPort> nsqds = new HashSet<HostAndPort>();
-        for (HostAndPort lookup : lookups) {
-            String urlString = null;
-            BufferedReader in = null;
-            try {
-                urlString = String.format("http://%s/lookup?topic=%s", lookup, URLEncoder.encode(topic, "UTF-8"));
-                URL url = new URL(urlString);
-                HttpURLConnection con = (HttpURLConnection) url.openConnection();
-                con.setConnectTimeout(30000);
-                con.setReadTimeout(30000);
-                if (con.getResponseCode() != 200) {
-                    logger.debug("ignoring lookup resp:{} nsqlookupd:{} topic:{}", con.getResponseCode(), lookup, topic);
-                    con.disconnect();
-                    continue;
+    private void lookup() {
+        List<Subscription> subs;
+        synchronized (this) {
+            if (isStopping) {
+                return;
+            }
+            subs = new ArrayList<Subscription>(subscriptions);
+            if (useNodesDiscovery && !lookups.isEmpty()) {
+                discoverNodes(subs);
+                return;
+            }
+        }
+        for (Subscription sub : subs) {
+            checkConnectionsAsync(sub, Collections.<HostAndPort>emptySet());
+        }
+    }
+
+    /**
+     * @param cached producers from the topology cache, any not confirmed by a successful lookup are disconnected
+     */
+    private void checkConnectionsAsync(final Subscription sub, final Set<HostAndPort> cached) {
+        lookupTopicAsync(sub.getTopic()).whenComplete((nsqds, error) -> {
+            if (error != null) {
+                logger.error("lookup error topic:{}", sub.getTopic(), error);
+            }
+            else {
+                cacheTopology(sub.getTopic(), nsqds);
+                sub.checkConnections(nsqds);
+                if (!nsqds.isEmpty() && !nsqds.containsAll(cached)) {
+                    Set<HostAndPort> stale = new HashSet<HostAndPort>(cached);
+                    stale.removeAll(nsqds);
+                    sub.closeConnections(stale);
                 }
-                in = new BufferedReader(new InputStreamReader(con.getInputStream()));
-                LookupResponse resp = client.getGson().fromJson(in, LookupResponse.class);
-                if (resp.getData() != null) {
-                    resp = resp.getData(); //nsq before version 1.0 wrapped the response with status_code/data
+            }
+        });
+    }
+
+    private void cacheTopology(String topic, Set<HostAndPort> nsqds) {
+        TopologyCache cache = topologyCache;
+        if (cache != null && !nsqds.isEmpty()) { //empty may be a failed lookup, keep the last known producers
+            cache.put(topic, nsqds);
+        }
+    }
+
+    /**
+     * Looks up a topic in the background without holding the subscriber lock.
+     * Results are cached for half the lookup interval and concurrent requests for a topic share a single lookup,
+     * so all subscriptions to a topic cost one query per lookupd per interval.
+     */
+    CompletableFuture<Set<HostAndPort>> lookupTopicAsync(final String topic) {
+        long now = Util.clock();
+        TopicLookup cached = topicLookups.get(topic);
+        if (cached != null && (!cached.result.isDone() || now - cached.startTime < lookupIntervalSecs * 500L)) {
+            return cached.result;
+        }
+        TopicLookup started = new TopicLookup(now);
+        if (cached == null ? topicLookups.putIfAbsent(topic, started) != null : !topicLookups.replace(topic, cached, started)) {
+            return topicLookups.get(topic).result; //another thread started a lookup first
+        }
+        client.getConnectExecutor().execute(new Runnable() {
+            public void run() {
+                try {
+                    started.result.complete(lookupTopic(topic));
                 }
-                for (LookupResponse.Producer prod : resp.getProducers()) {
-                    nsqds.add(HostAndPort.fromParts(prod.getBroadcastAddress(), prod.getTcpPort()));
+                catch (Throwable t) {
+                    started.result.completeExceptionally(t);
                 }
+            }
+        });
+        return started.result;
+    }
+
+    /**
+     * Queries all lookupds in parallel and blocks until they all answer or time out.
+     */
+    protected Set<HostAndPort> lookupTopic(final String topic) {
+        List<CompletableFuture<Set<HostAndPort>>> results = new ArrayList<CompletableFuture<Set<HostAndPort>>>();
+        for (final HostAndPort lookup : lookups) {
+            results.add(CompletableFuture.supplyAsync(() -> queryLookupd(lookup, topic), client.getConnectExecutor()));
+        }
+        Set<HostAndPort> nsqds = new HashSet<HostAndPort>();
+        for (CompletableFuture<Set<HostAndPort>> result : results) {
+            nsqds.addAll(result.join());
+        }
+        return nsqds;
+    }
+
+    private Set<HostAndPort> queryLookupd(HostAndPort lookup, String topic) {
+        Set<HostAndPort> nsqds = new HashSet<HostAndPort>();
+        String path;
+        try {
+            path = "/lookup?topic=" + URLEncoder.encode(topic, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+        LookupResponse resp = queryLookupd(lookup, path, "topic:" + topic);
+        if (resp != null && resp.getProducers() != null) {
+            for (LookupResponse.Producer prod : resp.getProducers()) {
+                nsqds.add(producerHost(prod));
+            }
+        }
+        return nsqds;
+    }
+
+    /**
+     * @return the response, or null if the request failed (logged and counted towards maxLookupFailuresBeforeError).
+     * A 404 (topic not registered yet) is an empty response, not a failure.
+     */
+    private LookupResponse queryLookupd(HostAndPort lookup, String path, String desc) {
+        String urlString = String.format("http://%s%s", lookup, path);
+        BufferedReader in = null;
+        try {
+            URL url = new URL(urlString);
+            HttpURLConnection con = (HttpURLConnection) url.openConnection();
+            con.setConnectTimeout(30000);
+            con.setReadTimeout(30000);
+            int status = con.getResponseCode();
+            if (status == 404) {
+                logger.debug("not found, lookup resp:{} nsqlookupd:{} {}", status, lookup, desc);
+                con.disconnect();
                 this.failures.remove(urlString);
+                return new LookupResponse();
             }
-            catch (UnsupportedEncodingException e) {
-                throw new RuntimeException(e);
+            if (status != 200) {
+                con.disconnect();
+                lookupFailed(urlString, lookup, desc, "resp:" + status, null);
+                return null;
             }
-            catch (Exception e) {
-                Integer lookupFailureCount = this.failures.get(urlString);
-                if (lookupFailureCount == null) {
-                    lookupFailureCount = 0;
+            in = new BufferedReader(new InputStreamReader(con.getInputStream()));
+            LookupResponse resp = client.getGson().fromJson(in, LookupResponse.class);
+            if (resp.getData() != null) {
+                resp = resp.getData(); //nsq before version 1.0 wrapped the response with status_code/data
+            }
+            this.failures.remove(urlString);
+            return resp;
+        }
+        catch (Exception e) {
+            lookupFailed(urlString, lookup, desc, e.toString(), e);
+            return null;
+        }
+        finally {
+            Util.closeQuietly(in);
+        }
+    }
+
+    private void lookupFailed(String urlString, HostAndPort lookup, String desc, String reason, Exception e) {
+        Integer lookupFailureCount = this.failures.get(urlString);
+        if (lookupFailureCount == null) {
+            lookupFailureCount = 0;
+        }
+        lookupFailureCount++;
+        this.failures.put(urlString, lookupFailureCount);
+
+        if (lookupFailureCount >= this.maxLookupFailuresBeforeError) {
+            logger.error("lookup failure. lookup failed for {} consecutive tries. {} nsqlookupd:{} {}",
+                    lookupFailureCount, reason, lookup, desc, e);
+        } else {
+            logger.warn("lookup failure. lookup failed for {} consecutive tries. {} nsqlookupd:{} {}",
+                    lookupFailureCount, reason, lookup, desc, e);
+        }
+    }
+
+    /**
+     * Fetches every producer and its topics with one /nodes request per lookupd,
+     * then checks connections only for subscriptions whose producers changed since the last discovery
+     * (or that are missing connections).
+     */
+    private void discoverNodes(final List<Subscription> subs) {
+        if (!isDiscovering.compareAndSet(false, true)) {
+            return;
+        }
+        client.getConnectExecutor().execute(new Runnable() {
+            public void run() {
+                try {
+                    Map<String, Set<HostAndPort>> topicNsqds = queryNodes();
+                    if (topicNsqds == null) {
+                        return; //every lookupd failed, keep the current connections
+                    }
+                    Map<String, Set<HostAndPort>> previous = nodesSnapshot;
+                    nodesSnapshot = topicNsqds;
+                    for (Subscription sub : subs) {
+                        Set<HostAndPort> nsqds = topicNsqds.get(sub.getTopic());
+                        if (nsqds == null) {
+                            nsqds = Collections.emptySet();
+                        }
+                        if (!nsqds.equals(previous.get(sub.getTopic())) || sub.getConnectionCount() < nsqds.size()) {
+                            cacheTopology(sub.getTopic(), nsqds);
+                            sub.checkConnections(nsqds);
+                        }
+                    }
+                }
+                catch (Throwable t) {
+                    logger.error("node discovery error", t);
                 }
-                lookupFailureCount++;
-                this.failures.put(urlString, lookupFailureCount);
-
-                if (lookupFailureCount >= this.maxLookupFailuresBeforeError) {
-                    logger.error("lookup failure. lookup failed for {} consecutive tries. nsqlookupd:{} topic:{}",
-                            lookupFailureCount, lookup, topic, e);
-                } else {
-                    logger.warn("lookup failure. lookup failed for {} consecutive tries. nsqlookupd:{} topic:{}",
-                            lookupFailureCount, lookup, topic, e);
+                finally {
+                    isDiscovering.set(false);
                 }
             }
-            finally {
-                Util.closeQuietly(in);
+        });
+    }
+
+    /**
+     * @return topic to producers for all lookupds combined, null if every lookupd failed
+     */
+    private Map<String, Set<HostAndPort>> queryNodes() {
+        List<CompletableFuture<LookupResponse>> results = new ArrayList<CompletableFuture<LookupResponse>>();
+        for (final HostAndPort lookup : lookups) {
+            results.add(CompletableFuture.supplyAsync(() -> queryLookupd(lookup, "/nodes", "nodes"), client.getConnectExecutor()));
+        }
+        Map<String, Set<HostAndPort>> topicNsqds = null;
+        for (CompletableFuture<LookupResponse> result : results) {
+            LookupResponse resp = result.join();
+            if (resp == null) {
+                continue;
+            }
+            if (topicNsqds == null) {
+                topicNsqds = new HashMap<String, Set<HostAndPort>>();
+            }
+            if (resp.getProducers() == null) {
+                continue;
+            }
+            for (LookupResponse.Producer prod : resp.getProducers()) {
+                List<String> topics = prod.getTopics();
+                List<Boolean> tombstones = prod.getTombstones();
+                if (topics == null) {
+                    continue;
+                }
+                HostAndPort nsqd = producerHost(prod);
+                for (int i = 0; i < topics.size(); i++) {
+                    if (tombstones != null && i < tombstones.size() && Boolean.TRUE.equals(tombstones.get(i))) {
+                        continue;
+                    }
+                    Set<HostAndPort> nsqds = topicNsqds.get(topics.get(i));
+                    if (nsqds == null) {
+                        nsqds = new HashSet<HostAndPort>();
+                        topicNsqds.put(topics.get(i), nsqds);
+                    }
+                    nsqds.add(nsqd);
+                }
             }
         }
-        return nsqds;
+        return topicNsqds;
+    }
+
+    private HostAndPort producerHost(LookupResponse.Producer prod) {
+        HostAndPort nsqd = HostAndPort.fromParts(prod.getBroadcastAddress(), prod.getTcpPort());
+        if (prod.getHttpPort() > 0) {
+            httpPorts.put(nsqd, prod.getHttpPort());
+        }
+        return nsqd;
+    }
+
+    /**
+     * @return the nsqd http address as reported by nsqlookupd, or the tcp port + 1 (the nsqd default) if unknown
+     */
+    HostAndPort getHttpHost(HostAndPort nsqd) {
+        Integer httpPort = httpPorts.get(nsqd);
+        return HostAndPort.fromParts(nsqd.getHost(), httpPort != null ? httpPort : nsqd.getPort() + 1);
+    }
+
+    /**
+     * @return the nsqds currently connected for all subscriptions to topic and channel
+     */
+    synchronized Map<HostAndPort, SubConnection> getConnections(String topic, String channel) {
+        Map<HostAndPort, SubConnection> cons = new HashMap<HostAndPort, SubConnection>();
+        for (Subscription sub : subscriptions) {
+            if (sub.getTopic().equals(topic) && sub.getChannel().equals(channel)) {
+                cons.putAll(sub.getConnections());
+            }
+        }
+        return cons;
+    }
+
+    private static class TopicLookup {
+        private final long startTime;
+        private final CompletableFuture<Set<HostAndPort>> result = new CompletableFuture<Set<HostAndPort>>();
+
+        TopicLookup(long startTime) {
+            this.startTime = startTime;
+        }
     }
 
     @Override
@@ -260,10 +584,359 @@ public class Subscriber extends BasePubSub {
         this.failedMessageHandler = failedMessageHandler;
     }
 
-    public synchronized int getLookupIntervalSecs() {
+    public synchronized boolean isUseNodesDiscovery() {
+        return useNodesDiscovery;
+    }
+
+    /**
+     * Discover producers for all subscriptions with a single nsqlookupd /nodes request per lookup interval,
+     * instead of a /lookup request per topic. Only subscriptions whose producers changed are updated.
+     * Useful with many subscriptions. New subscriptions still do a /lookup for their topic.
+     */
+    public synchronized void setUseNodesDiscovery(boolean useNodesDiscovery) {
+        this.useNodesDiscovery = useNodesDiscovery;
+    }
+
+    /**
+     * Persist the last known producers of each topic to this file after every lookup. When subscribing, producers
+     * found in the file are connected to immediately, without waiting for nsqlookupd, and the live lookup result
+     * is applied when it arrives. Set before subscribing. Null (the default) disables.
+     */
+    public synchronized void setTopologyCacheFile(Path file) {
+        topologyCache = file != null ? new TopologyCache(file, client.getGson()) : null;
+    }
+
+    //final, so not synchronized and safe to call from a subscription holding its lock
+    public int getLookupIntervalSecs() {
         return lookupIntervalSecs;
     }
 
+    public synchronized int getBackpressureQueueSize() {
+        return backpressureQueueSize;
+    }
+
+    /**
+     * Reduce RDY on all subscriptions while the handler executor queue holds more than this many messages.
+     * Only works when the executor is a ThreadPoolExecutor (the default). 0 disables.
+     */
+    public synchronized void setBackpressureQueueSize(int backpressureQueueSize) {
+        checkArgument(backpressureQueueSize >= 0);
+        this.backpressureQueueSize = backpressureQueueSize;
+        scheduleBackpressure();
+    }
+
+    public synchronized int getBackpressureQueueWaitMillis() {
+        return backpressureQueueWaitMillis;
+    }
+
+    /**
+     * Reduce RDY on a subscription while its messages wait in the handler executor queue longer than this. 0 disables.
+     * Checked every second against both messages that started and the oldest task still in the executor queue.
+     */
+    public synchronized void setBackpressureQueueWaitMillis(int backpressureQueueWaitMillis) {
+        checkArgument(backpressureQueueWaitMillis >= 0);
+        this.backpressureQueueWaitMillis = backpressureQueueWaitMillis;
+        scheduleBackpressure();
+    }
+
+    public synchronized int getShedQueueWaitMillis() {
+        return shedQueueWaitMillis;
+    }
+
+    /**
+     * Messages that waited in the handler executor queue longer than this are requeued instead of handled,
+     * nsqd has probably already timed them out. Applies to new subscriptions. 0 disables.
+     */
+    public synchronized void setShedQueueWaitMillis(int shedQueueWaitMillis) {
+        checkArgument(shedQueueWaitMillis >= 0);
+        this.shedQueueWaitMillis = shedQueueWaitMillis;
+    }
+
+    public synchronized int getShedRequeueDelayMillis() {
+        return shedRequeueDelayMillis;
+    }
+
+    /**
+     * The requeue delay used for messages shed by {@link #setShedQueueWaitMillis}. Applies to new subscriptions.
+     */
+    public synchronized void setShedRequeueDelayMillis(int shedRequeueDelayMillis) {
+        checkArgument(shedRequeueDelayMillis >= 0);
+        this.shedRequeueDelayMillis = shedRequeueDelayMillis;
+    }
+
+    public synchronized int getAutoTouchMaxMillis() {
+        return autoTouchMaxMillis;
+    }
+
+    /**
+     * Automatically TOUCH messages before they time out while their handler is running, for at most this long.
+     * A single client wide timer sends the touches, coalesced into one write per connection.
+     * Applies to new subscriptions. 0 (the default) disables.
+     */
+    public synchronized void setAutoTouchMaxMillis(int autoTouchMaxMillis) {
+        checkArgument(autoTouchMaxMillis >= 0);
+        this.autoTouchMaxMillis = autoTouchMaxMillis;
+    }
+
+    public synchronized int getHandlerDeadlineMillis() {
+        return handlerDeadlineMillis;
+    }
+
+    /**
+     * Requeue a message if its handler runs longer than this, so a stuck handler does not hold its maxInFlight slot.
+     * The handler thread is interrupted (see {@link #setInterruptHandlerOnDeadline}) and any later finish or requeue
+     * from it is ignored. Should normally be less than the nsqd msgTimeout unless auto touch is enabled.
+     * Checked every 500 ms. Applies to new subscriptions. 0 (the default) disables.
+     */
+    public synchronized void setHandlerDeadlineMillis(int handlerDeadlineMillis) {
+        checkArgument(handlerDeadlineMillis >= 0);
+        this.handlerDeadlineMillis = handlerDeadlineMillis;
+    }
+
+    public synchronized int getHandlerDeadlineRequeueDelayMillis() {
+        return handlerDeadlineRequeueDelayMillis;
+    }
+
+    public synchronized void setHandlerDeadlineRequeueDelayMillis(int handlerDeadlineRequeueDelayMillis) {
+        checkArgument(handlerDeadlineRequeueDelayMillis >= 0);
+        this.handlerDeadlineRequeueDelayMillis = handlerDeadlineRequeueDelayMillis;
+    }
+
+    public synchronized int getReconnectInitialDelayMillis() {
+        return reconnectInitialDelayMillis;
+    }
+
+    /**
+     * A connection that closes unexpectedly is redialed after this delay instead of waiting for the next lookup.
+     * The delay doubles after each failed attempt up to reconnectMaxDelayMillis, with jitter so many subscribers
+     * do not reconnect in lockstep. Applies to new subscriptions. 0 disables, leaving reconnects to the lookup interval.
+     */
+    public synchronized void setReconnectInitialDelayMillis(int reconnectInitialDelayMillis) {
+        checkArgument(reconnectInitialDelayMillis >= 0);
+        this.reconnectInitialDelayMillis = reconnectInitialDelayMillis;
+    }
+
+    public synchronized int getReconnectMaxDelayMillis() {
+        return reconnectMaxDelayMillis;
+    }
+
+    public synchronized void setReconnectMaxDelayMillis(int reconnectMaxDelayMillis) {
+        checkArgument(reconnectMaxDelayMillis > 0);
+        this.reconnectMaxDelayMillis = reconnectMaxDelayMillis;
+    }
+
+    public synchronized RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * Retry failed messages individually with this policy in new {@link MessageDataHandler} subscriptions,
+     * instead of backing off the whole subscription. Wrap a MessageHandler in a {@link RetryHandler} to do the same.
+     */
+    public synchronized void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+    }
+
+    public synchronized int getDedupWindowSecs() {
+        return dedupWindowSecs;
+    }
+
+    synchronized int getDedupExpectedKeys() {
+        return dedupExpectedKeys;
+    }
+
+    synchronized double getDedupFalsePositiveRate() {
+        return dedupFalsePositiveRate;
+    }
+
+    /**
+     * Finish redelivered messages on the connection read thread, without dispatching them, if a message with the same
+     * key was finished within the last windowSecs (up to twice that). Keys are the message id unless a
+     * {@link DedupKeyExtractor} is set. Uses a rotating Bloom filter of fixed size, about 2 * 1.44 * log2(1 / falsePositiveRate)
+     * bits per expected key. A redelivery that arrives while the first delivery is still being handled is requeued
+     * with a delay of msgTimeout instead. With message id keys first deliveries are never treated as duplicates,
+     * with a {@link DedupKeyExtractor} a false positive finishes a message without handling it, so keep the rate small.
+     * Applies to new subscriptions. windowSecs 0 (the default) disables.
+     */
+    public synchronized void setDeduplication(int windowSecs, int expectedKeysPerWindow, double falsePositiveRate) {
+        checkArgument(windowSecs >= 0);
+        checkArgument(windowSecs == 0 || expectedKeysPerWindow > 0);
+        checkArgument(windowSecs == 0 || (falsePositiveRate > 0 && falsePositiveRate < 1));
+        this.dedupWindowSecs = windowSecs;
+        this.dedupExpectedKeys = expectedKeysPerWindow;
+        this.dedupFalsePositiveRate = falsePositiveRate;
+    }
+
+    public synchronized DedupKeyExtractor getDedupKeyExtractor() {
+        return dedupKeyExtractor;
+    }
+
+    /**
+     * Key messages by content instead of message id, e.g. to drop messages published twice. null uses the message id.
+     */
+    public synchronized void setDedupKeyExtractor(DedupKeyExtractor dedupKeyExtractor) {
+        this.dedupKeyExtractor = dedupKeyExtractor;
+    }
+
+    public synchronized int getPartitionLanes() {
+        return partitionLanes;
+    }
+
+    public synchronized PartitionKeyExtractor getPartitionKeyExtractor() {
+        return partitionKeyExtractor;
+    }
+
+    /**
+     * Handle messages with the same key one at a time, in the order they were received, while different keys run in parallel.
+     * Keys are hashed to one of lanes serial queues that share the executor, so use at most as many lanes as executor threads.
+     * Ordering holds within a connection, nsq does not order messages across nsqds, and a requeued message is redelivered
+     * after the ones behind it. Not used with inline dispatch. Applies to new subscriptions. lanes 0 (the default) disables.
+     */
+    public synchronized void setPartitionedDispatch(int lanes, PartitionKeyExtractor keyExtractor) {
+        checkArgument(lanes >= 0);
+        checkArgument(lanes == 0 || keyExtractor != null);
+        this.partitionLanes = lanes;
+        this.partitionKeyExtractor = keyExtractor;
+    }
+
+    public synchronized int getMaxLaneDepth() {
+        return maxLaneDepth;
+    }
+
+    /**
+     * With partitioned dispatch, when one lane has this many messages waiting maxInFlight is held at the messages in flight
+     * then, so no more are pulled in behind the hot key, until it has drained to half.
+     * Applies to new subscriptions. Defaults to 100, 0 only limits by maxInFlight.
+     */
+    public synchronized void setMaxLaneDepth(int maxLaneDepth) {
+        checkArgument(maxLaneDepth >= 0);
+        this.maxLaneDepth = maxLaneDepth;
+    }
+
+    public synchronized LatencyListener getLatencyListener() {
+        return latencyListener;
+    }
+
+    synchronized int getLatencyReportIntervalSecs() {
+        return latencyReportIntervalSecs;
+    }
+
+    /**
+     * Record for every message the lag from the nsqd timestamp until it was received, the wait for a handler thread and
+     * the handler time, in histograms per subscription passed to the listener every reportIntervalSecs.
+     * Applies to new subscriptions. null (the default) disables.
+     */
+    public synchronized void setLatencyListener(LatencyListener latencyListener, int reportIntervalSecs) {
+        checkArgument(latencyListener == null || reportIntervalSecs > 0);
+        this.latencyListener = latencyListener;
+        this.latencyReportIntervalSecs = reportIntervalSecs;
+    }
+
+    synchronized int getSlowMessageThresholdMillis() {
+        return slowMessageThresholdMillis;
+    }
+
+    synchronized int getMaxSlowMessageSamples() {
+        return maxSlowMessageSamples;
+    }
+
+    /**
+     * Pass messages whose handler finished more than thresholdMillis after the nsqd timestamp to
+     * {@link LatencyListener#slowMessage}, at most maxSamplesPerInterval per report interval.
+     * Applies to new subscriptions. thresholdMillis 0 (the default) disables.
+     */
+    public synchronized void setSlowMessageSampling(int thresholdMillis, int maxSamplesPerInterval) {
+        checkArgument(thresholdMillis >= 0);
+        checkArgument(thresholdMillis == 0 || maxSamplesPerInterval > 0);
+        this.slowMessageThresholdMillis = thresholdMillis;
+        this.maxSlowMessageSamples = maxSamplesPerInterval;
+    }
+
+    public synchronized MessageFilter getMessageFilter() {
+        return messageFilter;
+    }
+
+    /**
+     * Messages the filter rejects are finished on the connection read thread without creating a Message or
+     * dispatching to the executor, their FINs are flushed together once the read thread has caught up.
+     * Applies to new subscriptions. null (the default) handles every message.
+     */
+    public synchronized void setMessageFilter(MessageFilter messageFilter) {
+        this.messageFilter = messageFilter;
+    }
+
+    public synchronized boolean isAdaptiveRdy() {
+        return adaptiveRdy;
+    }
+
+    /**
+     * Instead of splitting maxInFlight evenly, give each connection RDY in proportion to the in flight messages
+     * it needs for its observed delivery rate and round trip time, with extra weight for connections whose
+     * delivery is limited by RDY. Rebalanced every 5 seconds. Applies to new subscriptions. Defaults to false.
+     */
+    public synchronized void setAdaptiveRdy(boolean adaptiveRdy) {
+        this.adaptiveRdy = adaptiveRdy;
+    }
+
+    public synchronized boolean isInterruptHandlerOnDeadline() {
+        return interruptHandlerOnDeadline;
+    }
+
+    /**
+     * If false a handler past its deadline is abandoned, it keeps running but its result is ignored. Defaults to true.
+     */
+    public synchronized void setInterruptHandlerOnDeadline(boolean interruptHandlerOnDeadline) {
+        this.interruptHandlerOnDeadline = interruptHandlerOnDeadline;
+    }
+
+    @GuardedBy("this")
+    private void scheduleBackpressure() {
+        if (!isBackpressureScheduled && (backpressureQueueSize > 0 || backpressureQueueWaitMillis > 0)) {
+            isBackpressureScheduled = true;
+            scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    checkBackpressure();
+                }
+            }, BACKPRESSURE_CHECK_MILLIS, BACKPRESSURE_CHECK_MILLIS, false);
+        }
+    }
+
+    private void checkBackpressure() {
+        List<Subscription> subs;
+        int maxQueueSize;
+        int maxQueueWait;
+        synchronized (this) {
+            if (isStopping) {
+                return;
+            }
+            subs = new ArrayList<Subscription>(subscriptions);
+            maxQueueSize = backpressureQueueSize;
+            maxQueueWait = backpressureQueueWaitMillis;
+        }
+        Integer queueSize = getExecutorQueueSize();
+        boolean isQueueFull = maxQueueSize > 0 && queueSize != null && queueSize > maxQueueSize;
+        //messages that started only tell part of the story, with every handler thread stuck nothing starts
+        long oldestQueued = getExecutorQueueHeadAge();
+        for (Subscription sub : subs) {
+            long queueWait = Math.max(sub.takeMaxQueueWait(), oldestQueued);
+            sub.adjustThrottle(isQueueFull || (maxQueueWait > 0 && queueWait > maxQueueWait));
+        }
+    }
+
+    /**
+     * @return millis the task at the head of the executor queue has waited, 0 if the queue is empty or not a ThreadPoolExecutor
+     */
+    private long getExecutorQueueHeadAge() {
+        ExecutorService executor = client.getExecutor();
+        if (executor instanceof ThreadPoolExecutor) {
+            Runnable head = ((ThreadPoolExecutor) executor).getQueue().peek();
+            if (head instanceof QueuedTask) {
+                return ((QueuedTask) head).getQueueWait();
+            }
+        }
+        return 0;
+    }
+
     public Integer getExecutorQueueSize() {
         ExecutorService executor = client.getExecutor();
         return executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)executor).getQueue().size() : null;
@@ -1,22 +1,52 @@
 package com.sproutsocial.nsq;
 
+import net.jcip.annotations.GuardedBy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.sproutsocial.nsq.Util.copy;
+import static com.sproutsocial.nsq.Util.firstNonNull;
 
 class Subscription extends BasePubSub {
     private final SubscriptionId subscriptionId;
     private final String topic;
     private final String channel;
     private final MessageHandler handler;
+    private volatile Handle[] handles;
+    private final AtomicLong handleCounter = new AtomicLong();
     private final Subscriber subscriber;
     private final Map<HostAndPort, SubConnection> connectionMap = Collections.synchronizedMap(new HashMap<HostAndPort, SubConnection>());
+    private final Set<HostAndPort> pendingHosts = new HashSet<HostAndPort>();
+    private Set<HostAndPort> activeHosts = Collections.emptySet();
+    private final Map<HostAndPort, Integer> reconnectAttempts = new HashMap<HostAndPort, Integer>();
+    private final Map<HostAndPort, Long> connectTimes = new HashMap<HostAndPort, Long>();
+    private final int reconnectInitialDelayMillis;
+    private final int lookupIntervalSecs;
+    private final int reconnectMaxDelayMillis;
+    private final boolean adaptiveRdy;
+    private final DedupFilter dedupFilter;
+    private final MessageFilter messageFilter;
+    private final PartitionedDispatcher partitionedDispatcher;
+    private final LatencyTracker latencyTracker;
     private int maxInFlight;
-    private ScheduledFuture lowFlightRotateTask;
+    private int throttleLimit = -1;
+    private int budgetLimit = -1;
+    private int backoffLimit = -1;
+    private int laneLimit = -1;
+    private int weight = 1;
+    private final AtomicLong maxQueueWait = new AtomicLong();
+    private volatile boolean dispatchInline = false;
+    private volatile boolean isPolled = false;
+    private HashedWheelTimer.Timeout lowFlightRotateTask;
+
+    private static final int RDY_REBALANCE_MILLIS = 5000;
+    private static final int LOW_FLIGHT_CHECK_MILLIS = 1000;
+    private static final int LOW_FLIGHT_IDLE_MILLIS = 2000;
+    private static final int LOW_FLIGHT_ROTATE_MILLIS = 10000;
 
     private static final Logger logger = LoggerFactory.getLogger(Subscription.class);
 
@@ -31,15 +61,163 @@ class Subscription extends BasePubSub {
         this.subscriptionId = subscriptionId;
         this.topic = topic;
         this.channel = channel;
-        this.handler = handler;
+        this.handles = new Handle[] {new Handle(subscriptionId, handler, maxInFlight)};
+        this.handler = new MessageHandler() {
+            @Override
+            public void accept(Message msg) {
+                nextHandler().accept(msg);
+            }
+        };
         this.subscriber = subscriber;
         this.maxInFlight = maxInFlight;
+        this.reconnectInitialDelayMillis = subscriber.getReconnectInitialDelayMillis();
+        this.lookupIntervalSecs = subscriber.getLookupIntervalSecs();
+        this.reconnectMaxDelayMillis = subscriber.getReconnectMaxDelayMillis();
+        this.adaptiveRdy = subscriber.isAdaptiveRdy();
+        this.messageFilter = subscriber.getMessageFilter();
+        int partitionLanes = subscriber.getPartitionLanes();
+        partitionedDispatcher = partitionLanes > 0 ? new PartitionedDispatcher(this, client.getExecutor(), partitionLanes,
+                subscriber.getPartitionKeyExtractor(), subscriber.getMaxLaneDepth()) : null;
+        int dedupWindowSecs = subscriber.getDedupWindowSecs();
+        if (dedupWindowSecs > 0) {
+            dedupFilter = new DedupFilter(subscriber.getDedupExpectedKeys(), subscriber.getDedupFalsePositiveRate(), subscriber.getDedupKeyExtractor());
+            scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    dedupFilter.rotate();
+                }
+            }, dedupWindowSecs * 1000, dedupWindowSecs * 1000, false);
+        }
+        else {
+            dedupFilter = null;
+        }
+        LatencyListener latencyListener = subscriber.getLatencyListener();
+        if (latencyListener != null) {
+            latencyTracker = new LatencyTracker(topic, channel, latencyListener,
+                    subscriber.getSlowMessageThresholdMillis(), subscriber.getMaxSlowMessageSamples());
+            int reportMillis = subscriber.getLatencyReportIntervalSecs() * 1000;
+            scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    latencyTracker.report();
+                }
+            }, reportMillis, reportMillis, false);
+        }
+        else {
+            latencyTracker = null;
+        }
+        if (adaptiveRdy) {
+            scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    rebalanceRdy();
+                }
+            }, RDY_REBALANCE_MILLIS, RDY_REBALANCE_MILLIS, false);
+        }
+    }
+
+    /**
+     * @return null unless partitioned dispatch is enabled
+     */
+    PartitionedDispatcher getPartitionedDispatcher() {
+        return partitionedDispatcher;
+    }
+
+    /**
+     * @return null unless a latency listener is set
+     */
+    LatencyTracker getLatencyTracker() {
+        return latencyTracker;
+    }
+
+    MessageFilter getMessageFilter() {
+        return messageFilter;
+    }
+
+    /**
+     * @return null unless deduplication is enabled
+     */
+    DedupFilter getDedupFilter() {
+        return dedupFilter;
     }
 
     public SubscriptionId getSubscriptionId() {
         return subscriptionId;
     }
 
+    /**
+     * Shares this subscription with another subscribe call for the same topic and channel.
+     * Its maxInFlight is added to the subscription maxInFlight and it gets that share of the messages.
+     */
+    synchronized void addHandle(SubscriptionId id, MessageHandler handler, int maxInFlight) {
+        Handle[] added = Arrays.copyOf(handles, handles.length + 1);
+        added[handles.length] = new Handle(id, handler, maxInFlight);
+        handles = added;
+        this.maxInFlight += maxInFlight;
+        distributeMaxInFlight();
+    }
+
+    synchronized boolean hasHandle(SubscriptionId id) {
+        for (Handle handle : handles) {
+            if (handle.id.equals(id)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The subscription maxInFlight is scaled by the share of the handles that remain, so a maxInFlight set
+     * since the handles were added (e.g. 0 by {@link Subscriber#drainInFlight}) keeps its proportion.
+     * @return false if this is the last handle, the subscription should be stopped instead
+     */
+    synchronized boolean removeHandle(SubscriptionId id) {
+        if (handles.length == 1) {
+            return false;
+        }
+        long totalShare = 0;
+        long remainingShare = 0;
+        List<Handle> remaining = new ArrayList<Handle>(handles.length);
+        for (Handle handle : handles) {
+            totalShare += handle.maxInFlight;
+            if (!handle.id.equals(id)) {
+                remaining.add(handle);
+                remainingShare += handle.maxInFlight;
+            }
+        }
+        if (remaining.size() < handles.length) {
+            handles = remaining.toArray(new Handle[remaining.size()]);
+            if (maxInFlight > 0 && totalShare > 0) {
+                maxInFlight = (int) Math.max(1, Math.round((double) maxInFlight * remainingShare / totalShare));
+            }
+            distributeMaxInFlight();
+        }
+        return true;
+    }
+
+    synchronized int getHandleCount() {
+        return handles.length;
+    }
+
+    /**
+     * Weighted round robin over the handles by their maxInFlight.
+     */
+    private MessageHandler nextHandler() {
+        Handle[] current = handles;
+        if (current.length == 1) {
+            return current[0].handler;
+        }
+        long total = 0;
+        for (Handle handle : current) {
+            total += handle.weight();
+        }
+        long n = handleCounter.getAndIncrement() % total;
+        for (Handle handle : current) {
+            n -= handle.weight();
+            if (n < 0) {
+                return handle.handler;
+            }
+        }
+        return current[current.length - 1].handler;
+    }
+
     public synchronized int getMaxInFlight() {
         return maxInFlight;
     }
@@ -49,7 +227,124 @@ class Subscription extends BasePubSub {
         distributeMaxInFlight();
     }
 
+    /**
+     * maxInFlight reduced by executor backpressure, the client in flight budget, {@link BackoffHandler}
+     * and full partition lanes, this is what is actually distributed to connections.
+     */
+    public synchronized int getEffectiveMaxInFlight() {
+        int limit = throttleLimit < 0 ? maxInFlight : Math.min(maxInFlight, throttleLimit);
+        limit = budgetLimit < 0 ? limit : Math.min(limit, budgetLimit);
+        limit = laneLimit < 0 ? limit : Math.min(limit, laneLimit);
+        return backoffLimit < 0 ? limit : Math.min(limit, backoffLimit);
+    }
+
+    /**
+     * Set by the partitioned dispatcher, -1 for no limit.
+     */
+    synchronized void setLaneLimit(int laneLimit) {
+        if (this.laneLimit != laneLimit) {
+            this.laneLimit = laneLimit;
+            distributeMaxInFlight();
+        }
+    }
+
+    /**
+     * Set by BackoffHandler, -1 for no limit.
+     */
+    synchronized void setBackoffLimit(int backoffLimit) {
+        if (this.backoffLimit != backoffLimit) {
+            this.backoffLimit = backoffLimit;
+            distributeMaxInFlight();
+        }
+    }
+
+    /**
+     * Set by the client in flight budget, -1 for no limit.
+     */
+    synchronized void setBudgetLimit(int budgetLimit) {
+        if (this.budgetLimit != budgetLimit) {
+            this.budgetLimit = budgetLimit;
+            distributeMaxInFlight();
+        }
+    }
+
+    public synchronized int getWeight() {
+        return weight;
+    }
+
+    /**
+     * Relative share of the client in flight budget.
+     */
+    public synchronized void setWeight(int weight) {
+        Util.checkArgument(weight > 0);
+        this.weight = weight;
+    }
+
+    /**
+     * Called periodically by the subscriber when backpressure is enabled.
+     * Halves the effective maxInFlight while overloaded, then grows it back by 10% of maxInFlight per call.
+     */
+    synchronized void adjustThrottle(boolean isOverloaded) {
+        if (maxInFlight == 0) {
+            return;
+        }
+        int current = getEffectiveMaxInFlight();
+        if (isOverloaded) {
+            int limit = Math.max(1, current / 2);
+            if (limit < current || throttleLimit < 0) {
+                logger.info("executor overloaded, reducing maxInFlight to:{} {}", limit, this);
+                throttleLimit = limit;
+                distributeMaxInFlight();
+            }
+        }
+        else if (throttleLimit >= 0) {
+            int limit = current + Math.max(1, maxInFlight / 10);
+            throttleLimit = limit >= maxInFlight ? -1 : limit;
+            logger.debug("executor recovering, maxInFlight:{} {}", getEffectiveMaxInFlight(), this);
+            distributeMaxInFlight();
+        }
+    }
+
+    public synchronized boolean isThrottled() {
+        return throttleLimit >= 0;
+    }
+
+    void recordQueueWait(long waitMillis) {
+        long max = maxQueueWait.get();
+        while (waitMillis > max && !maxQueueWait.compareAndSet(max, waitMillis)) {
+            max = maxQueueWait.get();
+        }
+    }
+
+    /**
+     * @return the longest time a message waited in the executor queue since the last call
+     */
+    long takeMaxQueueWait() {
+        return maxQueueWait.getAndSet(0);
+    }
+
+    void setDispatchInline(boolean dispatchInline) {
+        this.dispatchInline = dispatchInline;
+    }
+
+    boolean isDispatchInline() {
+        return dispatchInline;
+    }
+
+    void setPolled(boolean isPolled) {
+        this.isPolled = isPolled;
+    }
+
+    boolean isPolled() {
+        return isPolled;
+    }
+
     public synchronized void checkConnections(Set<HostAndPort> activeHosts) {
+        this.activeHosts = new HashSet<HostAndPort>(activeHosts);
+        reconnectAttempts.keySet().retainAll(activeHosts);
+        //connects still in flight to hosts that are gone are dropped by connected, scheduled reconnects by reconnect
+        pendingHosts.retainAll(activeHosts);
+        connectTimes.keySet().retainAll(activeHosts);
         synchronized (connectionMap) {
             for (Iterator<SubConnection> iter = connectionMap.values().iterator(); iter.hasNext(); ) {
                 SubConnection con = iter.next();
@@ -63,32 +358,124 @@ class Subscription extends BasePubSub {
             }
         }
         for (HostAndPort activeHost : activeHosts) {
-            if (!connectionMap.containsKey(activeHost)) {
+            if (!connectionMap.containsKey(activeHost) && !isStopping && pendingHosts.add(activeHost)) {
+                connectAsync(activeHost);
+            }
+        }
+        distributeMaxInFlight();
+    }
+
+    /**
+     * Closes connections to hosts that are known to be stale, without waiting for them to go inactive.
+     */
+    public synchronized void closeConnections(Set<HostAndPort> hosts) {
+        for (HostAndPort host : hosts) {
+            SubConnection con = connectionMap.remove(host);
+            if (con != null) {
+                logger.info("closing stale connection:{} topic:{}", host, topic);
+                con.stop();
+            }
+        }
+        distributeMaxInFlight();
+    }
+
+    /**
+     * Connects on the client connect executor without holding any locks,
+     * the connection joins the RDY distribution as soon as its SUB succeeds.
+     */
+    private void connectAsync(final HostAndPort host) {
+        client.getConnectExecutor().execute(new Runnable() {
+            public void run() {
                 SubConnection con = null;
                 try {
-                    logger.info("adding new connection:{} topic:{}", activeHost, topic);
-                    con = new SubConnection(client, activeHost, this);
-                    con.connect(subscriber.getConfig());
-                    connectionMap.put(activeHost, con);
+                    Config config = subscriber.getConfig(); //Subscriber lock, never taken while holding ours
+                    logger.info("adding new connection:{} topic:{}", host, topic);
+                    con = new SubConnection(client, host, Subscription.this);
+                    con.connect(config);
+                    connected(host, con);
                 }
                 catch (Exception e) {
-                    logger.error("error connecting to:{}, interrupted:{}", activeHost, Thread.interrupted(), e);
-                    if(con != null) {
+                    logger.error("error connecting to:{}, interrupted:{}", host, Thread.interrupted(), e);
+                    connectFailed(host);
+                    if (con != null) {
                         con.close();
                     }
                 }
             }
+        });
+    }
+
+    private synchronized void connected(HostAndPort host, SubConnection con) {
+        pendingHosts.remove(host);
+        if (isStopping) {
+            con.stop();
+            return;
         }
+        if (!activeHosts.contains(host) || connectionMap.containsKey(host)) {
+            logger.info("dropping connection:{} topic:{}, host is no longer active or already connected", host, topic);
+            con.stop();
+            return;
+        }
+        if (reconnectAttempts.containsKey(host)) {
+            logger.info("reconnected:{} topic:{}", host, topic);
+        }
+        connectTimes.put(host, Util.clock());
+        connectionMap.put(host, con);
         distributeMaxInFlight();
     }
 
+    private synchronized void connectFailed(HostAndPort host) {
+        pendingHosts.remove(host);
+        Integer attempts = reconnectAttempts.get(host);
+        if (attempts != null) {
+            scheduleReconnect(host, attempts);
+        }
+    }
+
+    /**
+     * Redials a host that is still expected to be up, with exponential backoff and jitter between attempts.
+     * Stops once the host is no longer returned by lookups, a lookup can always reconnect it later.
+     */
+    @GuardedBy("this")
+    private void scheduleReconnect(final HostAndPort host, int attempts) {
+        if (isStopping || reconnectInitialDelayMillis == 0 || !activeHosts.contains(host)) {
+            reconnectAttempts.remove(host);
+            return;
+        }
+        if (!pendingHosts.add(host)) {
+            return;
+        }
+        reconnectAttempts.put(host, attempts + 1);
+        long delay = Math.min((long) reconnectInitialDelayMillis << Math.min(attempts, 20), reconnectMaxDelayMillis);
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        logger.info("reconnecting to:{} topic:{} in {}ms attempt:{}", host, topic, delay, attempts + 1);
+        Events.reconnect(host, topic, attempts + 1, delay);
+        client.schedule(new Runnable() {
+            public void run() {
+                reconnect(host);
+            }
+        }, (int) delay);
+    }
+
+    private synchronized void reconnect(HostAndPort host) {
+        if (isStopping || connectionMap.containsKey(host) || !activeHosts.contains(host)) {
+            pendingHosts.remove(host);
+            reconnectAttempts.remove(host);
+            return;
+        }
+        connectAsync(host);
+    }
+
     private void distributeMaxInFlight() {
         if (checkLowFlight() || connectionMap.isEmpty()) {
             return;
         }
+        if (adaptiveRdy && distributeAdaptive(copy(connectionMap.values()))) {
+            return;
+        }
         List<SubConnection> activeCons = new ArrayList<SubConnection>();
         List<SubConnection> inactiveCons = new ArrayList<SubConnection>();
-        long minActiveTime = Util.clock() - (subscriber.getLookupIntervalSecs() + 40) * 1000;
+        long minActiveTime = Util.clock() - (lookupIntervalSecs + 40) * 1000;
         for (SubConnection con : copy(connectionMap.values())) {
             if (con.lastActionFlush < minActiveTime) {
                 inactiveCons.add(con);
@@ -104,7 +491,7 @@ class Subscription extends BasePubSub {
         for (SubConnection con : inactiveCons) {
             con.setMaxInFlight(1, false);
         }
-        int f = maxInFlight - inactiveCons.size();
+        int f = getEffectiveMaxInFlight() - inactiveCons.size();
         int perCon = f / activeCons.size();
         int extra = f % activeCons.size();
         for (SubConnection con : activeCons) {
@@ -117,22 +504,158 @@ class Subscription extends BasePubSub {
         }
     }
 
+    private synchronized void rebalanceRdy() {
+        for (SubConnection con : copy(connectionMap.values())) {
+            con.sampleDelivery();
+        }
+        distributeMaxInFlight();
+    }
+
+    /**
+     * Splits maxInFlight in proportion to each connection's RDY demand, doubled for connections limited by RDY
+     * or with a channel backlog reported by {@link StatsAutoscaler}, since their nsqd has more waiting. Connections that received nothing
+     * for a rebalance interval get RDY 1 so new messages are still noticed (the moving average only decays towards 0),
+     * connections not sampled yet get the average weight. Capped by each connection's maxRdyCount.
+     * @return false if no connection has received anything yet, the caller splits evenly instead
+     */
+    private boolean distributeAdaptive(List<SubConnection> cons) {
+        List<SubConnection> weighted = new ArrayList<SubConnection>(cons.size());
+        List<Double> weights = new ArrayList<Double>(cons.size());
+        List<SubConnection> unsampled = new ArrayList<SubConnection>();
+        List<SubConnection> idle = new ArrayList<SubConnection>();
+        double totalWeight = 0;
+        long now = Util.clock();
+        for (SubConnection con : cons) {
+            if (!con.isDeliverySampled()) {
+                unsampled.add(con);
+            }
+            else if (now - con.getLastMessageTime() > RDY_REBALANCE_MILLIS) {
+                idle.add(con);
+            }
+            else {
+                double weight = Math.max(con.getRdyDemand(), 1) * (con.isRdyBound() || con.getChannelDepth() > 0 ? 2 : 1);
+                weighted.add(con);
+                weights.add(weight);
+                totalWeight += weight;
+            }
+        }
+        if (weighted.isEmpty()) {
+            return false;
+        }
+        double avgWeight = totalWeight / weighted.size();
+        for (SubConnection con : unsampled) {
+            weighted.add(con);
+            weights.add(avgWeight);
+        }
+        for (SubConnection con : idle) {
+            con.setMaxInFlight(1, false);
+        }
+        int[] maxRdy = new int[weighted.size()];
+        double[] weightArray = new double[weighted.size()];
+        for (int i = 0; i < maxRdy.length; i++) {
+            maxRdy[i] = weighted.get(i).getMaxRdyCount();
+            weightArray[i] = weights.get(i);
+        }
+        int[] rdy = allocate(getEffectiveMaxInFlight() - idle.size(), maxRdy, weightArray);
+        for (int i = 0; i < rdy.length; i++) {
+            weighted.get(i).setMaxInFlight(rdy[i]);
+        }
+        logger.debug("adaptive RDY:{} idle:{} {}", Arrays.toString(rdy), idle.size(), this);
+        return true;
+    }
+
+    /**
+     * Proportional split of budget with a minimum of 1 each, connections whose share exceeds maxRdy are
+     * capped and the rest is split again among the others. Rounding leftovers go to the largest weights,
+     * never past maxRdy, so less than budget may be allocated but never more. If the budget left is less than
+     * the number of uncapped connections the minimum is 0.
+     */
+    static int[] allocate(int budget, int[] maxRdy, double[] weights) {
+        int n = maxRdy.length;
+        int[] rdy = new int[n];
+        boolean[] isCapped = new boolean[n];
+        int remaining = Math.max(budget, 0);
+        boolean isChanged = true;
+        while (isChanged) {
+            isChanged = false;
+            double total = 0;
+            for (int i = 0; i < n; i++) {
+                if (!isCapped[i]) {
+                    total += weights[i];
+                }
+            }
+            for (int i = 0; i < n && total > 0; i++) {
+                if (!isCapped[i] && remaining * weights[i] / total >= maxRdy[i]) {
+                    rdy[i] = maxRdy[i];
+                    isCapped[i] = true;
+                    remaining -= maxRdy[i];
+                    isChanged = true;
+                    break;
+                }
+            }
+        }
+        double total = 0;
+        int uncapped = 0;
+        for (int i = 0; i < n; i++) {
+            if (!isCapped[i]) {
+                total += weights[i];
+                uncapped++;
+            }
+        }
+        int min = remaining >= uncapped ? 1 : 0;
+        int assigned = 0;
+        for (int i = 0; i < n; i++) {
+            if (!isCapped[i]) {
+                rdy[i] = Math.min(Math.max(min, (int) (remaining * weights[i] / total)), maxRdy[i]);
+                assigned += rdy[i];
+            }
+        }
+        int leftover = remaining - assigned;
+        while (leftover != 0) {
+            int best = -1;
+            for (int i = 0; i < n; i++) {
+                if (isCapped[i] || (leftover < 0 && rdy[i] <= min) || (leftover > 0 && rdy[i] >= maxRdy[i])) {
+                    continue;
+                }
+                //give to the most under allocated counting the one it would get, take from the most over allocated
+                int share = leftover > 0 ? 1 : 0;
+                double ratio = weights[i] / (rdy[i] + share);
+                if (best < 0 || (leftover > 0 ? ratio > weights[best] / (rdy[best] + share) : ratio < weights[best] / rdy[best])) {
+                    best = i;
+                }
+            }
+            if (best < 0) {
+                break;
+            }
+            rdy[best] += leftover > 0 ? 1 : -1;
+            leftover += leftover > 0 ? -1 : 1;
+        }
+        return rdy;
+    }
+
+    /**
+     * When maxInFlight is less than the number of connections, RDY 1 goes to the connections most likely to have messages
+     * (see {@link #rankLowFlight}) and the rest are paused. Every second a ready connection that has gone idle is swapped
+     * for the best paused one, and a connection that has held RDY for 10 seconds gives it up so paused nsqds are not starved.
+     * Connections are paused before others are readied, so total RDY never exceeds maxInFlight.
+     */
     private boolean checkLowFlight() {
+        int maxInFlight = getEffectiveMaxInFlight();
         if (maxInFlight < connectionMap.size()) {
             if (lowFlightRotateTask == null) {
                 lowFlightRotateTask = client.scheduleAtFixedRate(new Runnable() {
                     public void run() {
                         rotateLowFlight();
                     }
-                }, 10000, 10000, false);
-            }
-            List<SubConnection> cons = copy(connectionMap.values());
-            for (SubConnection con : cons.subList(0, maxInFlight)) {
-                con.setMaxInFlight(1);
+                }, LOW_FLIGHT_CHECK_MILLIS, LOW_FLIGHT_CHECK_MILLIS, false);
             }
+            List<SubConnection> cons = rankLowFlight(copy(connectionMap.values()), Util.clock());
             for (SubConnection con : cons.subList(maxInFlight, cons.size())) {
                 con.setMaxInFlight(0);
             }
+            for (SubConnection con : cons.subList(0, maxInFlight)) {
+                con.setMaxInFlight(1);
+            }
             return true;
         }
         Util.cancel(lowFlightRotateTask);
@@ -140,26 +663,97 @@ class Subscription extends BasePubSub {
         return false;
     }
 
+    /**
+     * Orders connections by how likely they are to have messages: a known channel backlog first (largest first),
+     * then connections that delivered recently (most recent first), then the rest by how long since they last had RDY.
+     */
+    private static List<SubConnection> rankLowFlight(List<SubConnection> cons, long now) {
+        //snapshot first, the stats change while sorting
+        List<LowFlightRank> ranks = new ArrayList<LowFlightRank>(cons.size());
+        for (SubConnection con : cons) {
+            ranks.add(new LowFlightRank(con, now));
+        }
+        Collections.sort(ranks);
+        cons.clear();
+        for (LowFlightRank rank : ranks) {
+            cons.add(rank.con);
+        }
+        return cons;
+    }
+
+    private static class LowFlightRank implements Comparable<LowFlightRank> {
+        private final SubConnection con;
+        private final long depth;
+        private final boolean isRecent;
+        private final long lastMessageTime;
+        private final long lastRdyTime;
+
+        LowFlightRank(SubConnection con, long now) {
+            this.con = con;
+            this.depth = Math.max(con.getChannelDepth(), 0);
+            this.lastMessageTime = con.getLastMessageTime();
+            this.isRecent = now - lastMessageTime < LOW_FLIGHT_ROTATE_MILLIS;
+            this.lastRdyTime = con.getLastRdyTime();
+        }
+
+        @Override
+        public int compareTo(LowFlightRank other) {
+            if (depth != other.depth) {
+                return depth > other.depth ? -1 : 1;
+            }
+            if (isRecent != other.isRecent) {
+                return isRecent ? -1 : 1;
+            }
+            if (isRecent) {
+                return Long.compare(other.lastMessageTime, lastMessageTime);
+            }
+            return Long.compare(lastRdyTime, other.lastRdyTime);
+        }
+    }
+
     private synchronized void rotateLowFlight() {
-        SubConnection paused = null;
-        SubConnection ready = null;
+        if (lowFlightRotateTask == null) {
+            return;
+        }
+        long now = Util.clock();
+        List<SubConnection> paused = new ArrayList<SubConnection>();
+        List<SubConnection> ready = new ArrayList<SubConnection>();
         for (SubConnection con : copy(connectionMap.values())) {
-            if (con.getMaxInFlight() == 0 && (paused == null || con.getLastActionFlush() < paused.getLastActionFlush())) {
-                paused = con;
+            if (con.getMaxInFlight() == 0) {
+                paused.add(con);
+            }
+            else {
+                ready.add(con);
+            }
+        }
+        if (paused.isEmpty()) {
+            return;
+        }
+        rankLowFlight(paused, now);
+        int next = 0;
+        SubConnection longestReady = null;
+        for (SubConnection con : ready) {
+            long lastActive = Math.max(con.getLastMessageTime(), con.getLastRdyTime());
+            if (con.getCurrentInFlightCount() == 0 && now - lastActive >= LOW_FLIGHT_IDLE_MILLIS && next < paused.size()) {
+                con.setMaxInFlight(0);
+                paused.get(next++).setMaxInFlight(1);
             }
-            else if (con.getMaxInFlight() == 1 && (ready == null || con.getLastActionFlush() < ready.getLastActionFlush())) {
-                ready = con;
+            else if (now - con.getLastRdyTime() >= LOW_FLIGHT_ROTATE_MILLIS
+                    && (longestReady == null || con.getLastRdyTime() < longestReady.getLastRdyTime())) {
+                longestReady = con;
             }
         }
-        if (ready != null && paused != null) { //should always be true
-            ready.setMaxInFlight(0);
-            paused.setMaxInFlight(1);
+        //fairness, one long running connection per check makes way unless stats say the best paused one is empty
+        if (longestReady != null && next < paused.size() && paused.get(next).getChannelDepth() != 0) {
+            longestReady.setMaxInFlight(0);
+            paused.get(next).setMaxInFlight(1);
         }
     }
 
     @Override
     public void stop() {
         super.stop();
+        client.getInFlightBudget().remove(this);
         synchronized (this) {
             Util.cancel(lowFlightRotateTask);
             lowFlightRotateTask = null;
@@ -173,9 +767,23 @@ class Subscription extends BasePubSub {
         if (connectionMap.get(closedCon.getHost()) == closedCon) {
             connectionMap.remove(closedCon.getHost());
             logger.debug("removed:{} from subscription:{}", closedCon.getHost(), topic);
+            if (!isStopping) {
+                distributeMaxInFlight();
+                scheduleReconnect(closedCon.getHost(), isStable(closedCon) ? 0 : firstNonNull(reconnectAttempts.get(closedCon.getHost()), 0));
+            }
         }
     }
 
+    /**
+     * A connection that stayed up for a heartbeat interval resets the reconnect backoff, one that drops sooner
+     * (e.g. nsqd accepting connections but failing SUB or heartbeats) keeps backing off.
+     */
+    @GuardedBy("this")
+    private boolean isStable(SubConnection con) {
+        Long connectTime = connectTimes.remove(con.getHost());
+        return connectTime == null || Util.clock() - connectTime >= con.getHeartbeatInterval();
+    }
+
     public synchronized boolean isLowFlight() {
         return lowFlightRotateTask != null;
     }
@@ -201,6 +809,28 @@ class Subscription extends BasePubSub {
         return String.format("subscription id %s, %s.%s connections:%s", subscriptionId, topic, channel, connectionMap.size());
     }
 
+    private static class Handle {
+        private final SubscriptionId id;
+        private final MessageHandler handler;
+        private final int maxInFlight;
+
+        Handle(SubscriptionId id, MessageHandler handler, int maxInFlight) {
+            this.id = id;
+            this.handler = handler;
+            this.maxInFlight = maxInFlight;
+        }
+
+        int weight() {
+            return Math.max(maxInFlight, 1);
+        }
+    }
+
+    Map<HostAndPort, SubConnection> getConnections() {
+        synchronized (connectionMap) {
+            return new HashMap<HostAndPort, SubConnection>(connectionMap);
+        }
+    }
+
     public int getConnectionCount() {
         return connectionMap.size();
     }
@@ -0,0 +1,113 @@
+package com.sproutsocial.nsq;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+import net.jcip.annotations.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Last known producers for each topic, persisted to a json file so a restarted subscriber can connect
+ * before nsqlookupd answers. The file is rewritten atomically (temp file and rename) whenever a topic changes.
+ */
+@ThreadSafe
+class TopologyCache {
+
+    private final Path file;
+    private final Gson gson;
+    private final Map<String, List<String>> topics = new HashMap<String, List<String>>();
+
+    private static final Type FILE_TYPE = new TypeToken<Map<String, List<String>>>() {}.getType();
+    private static final Logger logger = LoggerFactory.getLogger(TopologyCache.class);
+
+    TopologyCache(Path file, Gson gson) {
+        this.file = file;
+        this.gson = gson;
+        load();
+    }
+
+    synchronized Set<HostAndPort> get(String topic) {
+        List<String> nsqds = topics.get(topic);
+        if (nsqds == null) {
+            return Collections.emptySet();
+        }
+        Set<HostAndPort> hosts = new HashSet<HostAndPort>();
+        for (String nsqd : nsqds) {
+            hosts.add(HostAndPort.fromString(nsqd));
+        }
+        return hosts;
+    }
+
+    /**
+     * Records the producers from a successful lookup, writes the file if anything changed.
+     */
+    synchronized void put(String topic, Set<HostAndPort> nsqds) {
+        List<String> sorted = new ArrayList<String>(nsqds.size());
+        for (HostAndPort nsqd : nsqds) {
+            sorted.add(nsqd.toString());
+        }
+        Collections.sort(sorted);
+        if (!sorted.equals(topics.get(topic))) {
+            topics.put(topic, sorted);
+            write();
+        }
+    }
+
+    private void load() {
+        if (!Files.exists(file)) {
+            return;
+        }
+        Reader in = null;
+        try {
+            in = Files.newBufferedReader(file, Util.UTF_8);
+            Map<String, List<String>> loaded = gson.fromJson(in, FILE_TYPE);
+            if (loaded != null) {
+                topics.putAll(loaded);
+            }
+            logger.info("loaded topology cache:{} topics:{}", file, topics.size());
+        }
+        catch (Exception e) {
+            logger.warn("could not read topology cache:{}, ignoring it", file, e);
+        }
+        finally {
+            Util.closeQuietly(in);
+        }
+    }
+
+    private void write() {
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Writer out = null;
+        try {
+            out = Files.newBufferedWriter(tmp, Util.UTF_8);
+            gson.toJson(topics, FILE_TYPE, out);
+            out.close();
+            try {
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        catch (IOException e) {
+            logger.warn("could not write topology cache:{}", file, e);
+            Util.closeQuietly(out);
+        }
+    }
+
+}
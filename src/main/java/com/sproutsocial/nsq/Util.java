@@ -12,7 +12,6 @@ import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
@@ -67,9 +66,9 @@ class Util {
         }
     }
 
-    public static void cancel(ScheduledFuture task) {
+    public static void cancel(HashedWheelTimer.Timeout task) {
         if (task != null) {
-            task.cancel(false);
+            task.cancel();
         }
     }
 
@@ -0,0 +1,250 @@
+package com.sproutsocial.nsq;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * JDK Flight Recorder events, loaded instead of the no-op version on java 11 and up.
+ * Every method checks whether its event type is enabled before allocating, so a disabled event costs a few field reads.
+ * The event types are only looked up once the recorder has been initialized, and if the jdk.jfr module is missing
+ * (e.g. a jlink image without it) every hook turns into a no-op.
+ * Span events are committed on the thread that ends them.
+ */
+final class Events {
+
+    private static final int PUBLISH = 0;
+    private static final int MESSAGE = 1;
+    private static final int FLUSH = 2;
+    private static final int RDY = 3;
+    private static final int HEARTBEAT = 4;
+    private static final int CONNECTION = 5;
+    private static final int RECONNECT = 6;
+
+    private static volatile boolean isUnavailable = false;
+
+    private static final Logger logger = LoggerFactory.getLogger(Events.class);
+
+    private Events() {
+    }
+
+    private static boolean isEnabled(int type) {
+        if (isUnavailable) {
+            return false;
+        }
+        try {
+            //no recording has been started yet, so no event can be enabled
+            if (!FlightRecorder.isInitialized()) {
+                return false;
+            }
+            return Types.TYPES[type].isEnabled();
+        }
+        catch (LinkageError e) {
+            isUnavailable = true;
+            logger.info("flight recorder not available, nsq events disabled: {}", e.toString());
+            return false;
+        }
+    }
+
+    //initialized on first use, after a recording exists
+    private static final class Types {
+        private static final EventType[] TYPES = {
+                EventType.getEventType(PublishEvent.class),
+                EventType.getEventType(MessageEvent.class),
+                EventType.getEventType(FlushEvent.class),
+                EventType.getEventType(RdyEvent.class),
+                EventType.getEventType(HeartbeatEvent.class),
+                EventType.getEventType(ConnectionEvent.class),
+                EventType.getEventType(ReconnectEvent.class)
+        };
+    }
+
+    static Object beginPublish() {
+        if (!isEnabled(PUBLISH)) {
+            return null;
+        }
+        PublishEvent event = new PublishEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endPublish(Object event, String command, String topic, HostAndPort nsqd, int messages, long bytes, boolean isSuccess) {
+        if (event == null) {
+            return;
+        }
+        PublishEvent e = (PublishEvent) event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.command = command;
+            e.topic = topic;
+            e.nsqd = nsqd.toString();
+            e.messages = messages;
+            e.bytes = bytes;
+            e.success = isSuccess;
+            e.commit();
+        }
+    }
+
+    static Object beginMessage() {
+        if (!isEnabled(MESSAGE)) {
+            return null;
+        }
+        MessageEvent event = new MessageEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endMessage(Object event, NSQMessage msg, String result) {
+        if (event == null) {
+            return;
+        }
+        MessageEvent e = (MessageEvent) event;
+        e.end();
+        if (e.shouldCommit()) {
+            SubConnection con = msg.getConnection();
+            e.topic = msg.getTopic();
+            e.channel = con.getSubscription().getChannel();
+            e.nsqd = con.getHost().toString();
+            e.id = msg.getId();
+            e.attempts = msg.getAttempts();
+            e.bytes = msg.getData().length;
+            e.result = result;
+            e.commit();
+        }
+    }
+
+    static Object beginFlush() {
+        if (!isEnabled(FLUSH)) {
+            return null;
+        }
+        FlushEvent event = new FlushEvent();
+        event.begin();
+        return event;
+    }
+
+    static void endFlush(Object event, HostAndPort nsqd, int commands) {
+        if (event == null) {
+            return;
+        }
+        FlushEvent e = (FlushEvent) event;
+        e.end();
+        if (e.shouldCommit()) {
+            e.nsqd = nsqd.toString();
+            e.commands = commands;
+            e.commit();
+        }
+    }
+
+    static void rdy(HostAndPort nsqd, String topic, int rdy) {
+        if (isEnabled(RDY)) {
+            RdyEvent e = new RdyEvent();
+            e.nsqd = nsqd.toString();
+            e.topic = topic;
+            e.rdy = rdy;
+            e.commit();
+        }
+    }
+
+    static void heartbeat(HostAndPort nsqd) {
+        if (isEnabled(HEARTBEAT)) {
+            HeartbeatEvent e = new HeartbeatEvent();
+            e.nsqd = nsqd.toString();
+            e.commit();
+        }
+    }
+
+    static void connection(HostAndPort nsqd, String state) {
+        if (isEnabled(CONNECTION)) {
+            ConnectionEvent e = new ConnectionEvent();
+            e.nsqd = nsqd.toString();
+            e.state = state;
+            e.commit();
+        }
+    }
+
+    static void reconnect(HostAndPort nsqd, String topic, int attempt, long delayMillis) {
+        if (isEnabled(RECONNECT)) {
+            ReconnectEvent e = new ReconnectEvent();
+            e.nsqd = nsqd.toString();
+            e.topic = topic;
+            e.attempt = attempt;
+            e.delay = delayMillis;
+            e.commit();
+        }
+    }
+
+    @Name("com.sproutsocial.nsq.Publish")
+    @Label("NSQ Publish")
+    @Category("NSQ")
+    static class PublishEvent extends Event {
+        @Label("Command") String command;
+        @Label("Topic") String topic;
+        @Label("nsqd") String nsqd;
+        @Label("Messages") int messages;
+        @Label("Bytes") @DataAmount long bytes;
+        @Label("Success") boolean success;
+    }
+
+    @Name("com.sproutsocial.nsq.Message")
+    @Label("NSQ Message")
+    @Category("NSQ")
+    static class MessageEvent extends Event {
+        @Label("Topic") String topic;
+        @Label("Channel") String channel;
+        @Label("nsqd") String nsqd;
+        @Label("Message Id") String id;
+        @Label("Attempts") int attempts;
+        @Label("Bytes") @DataAmount int bytes;
+        @Label("Result") String result;
+    }
+
+    @Name("com.sproutsocial.nsq.Flush")
+    @Label("NSQ Flush")
+    @Category("NSQ")
+    static class FlushEvent extends Event {
+        @Label("nsqd") String nsqd;
+        @Label("Commands") int commands;
+    }
+
+    @Name("com.sproutsocial.nsq.Rdy")
+    @Label("NSQ RDY")
+    @Category("NSQ")
+    static class RdyEvent extends Event {
+        @Label("nsqd") String nsqd;
+        @Label("Topic") String topic;
+        @Label("RDY") int rdy;
+    }
+
+    @Name("com.sproutsocial.nsq.Heartbeat")
+    @Label("NSQ Heartbeat")
+    @Category("NSQ")
+    static class HeartbeatEvent extends Event {
+        @Label("nsqd") String nsqd;
+    }
+
+    @Name("com.sproutsocial.nsq.Connection")
+    @Label("NSQ Connection")
+    @Category("NSQ")
+    static class ConnectionEvent extends Event {
+        @Label("nsqd") String nsqd;
+        @Label("State") String state;
+    }
+
+    @Name("com.sproutsocial.nsq.Reconnect")
+    @Label("NSQ Reconnect Scheduled")
+    @Category("NSQ")
+    static class ReconnectEvent extends Event {
+        @Label("nsqd") String nsqd;
+        @Label("Topic") String topic;
+        @Label("Attempt") int attempt;
+        @Label("Delay") @Timespan(Timespan.MILLISECONDS) long delay;
+    }
+
+}
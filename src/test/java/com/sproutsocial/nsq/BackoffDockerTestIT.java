@@ -7,6 +7,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -45,10 +47,46 @@ public class BackoffDockerTestIT extends BaseDockerTestIT {
 
     @Test
     public void test(){
+        checkBackoffDelays(false);
+    }
+
+    @Test
+    public void perConnection(){
+        checkBackoffDelays(true);
+    }
+
+    @Test
+    public void inFlightMessagesAreHeldNotRequeued() {
+        final List<Integer> attempts = new CopyOnWriteArrayList<>();
+        final AtomicBoolean isFailed = new AtomicBoolean();
+        MessageHandler handler = new MessageHandler() {
+            @Override
+            public void accept(Message msg) {
+                if (isFailed.compareAndSet(false, true)) {
+                    throw new RuntimeException();
+                }
+                attempts.add(msg.getAttempts());
+            }
+        };
+        publisher = primaryOnlyPublisher();
+        List<String> messages = messages(5, 30);
+        for (String message : messages) {
+            publisher.publish(topic, message.getBytes());
+        }
+        subscriber = new Subscriber(client, 1, 5, cluster.getLookupNode().getHttpHostAndPort().toString());
+        subscriber.subscribe(topic, "tail" + System.currentTimeMillis(), 5, new BackoffHandler(handler, 500, 4000));
+
+        Util.sleepQuietly(4000);
+        //the failed message is requeued, the others were in flight during the pause and are handled on their first attempt
+        assertEquals(messages.size(), attempts.size());
+        assertEquals(messages.size() - 1, attempts.stream().filter(a -> a == 1).count());
+    }
+
+    private void checkBackoffDelays(boolean isPerConnection) {
         FailingHandler failingHandler = new FailingHandler(true, false, false, false, true, true, true, true, true);
         subscriber = new Subscriber(client, 1, 5, cluster.getLookupNode().getHttpHostAndPort().toString());
         subscriber.setDefaultMaxInFlight(1);
-        BackoffHandler backoffHandler = new BackoffHandler(failingHandler, 500, 4000);
+        BackoffHandler backoffHandler = new BackoffHandler(failingHandler, 500, 4000, isPerConnection);
         subscriber.subscribe(topic, "tail" + System.currentTimeMillis(), backoffHandler);
         publisher = primaryOnlyPublisher();
 
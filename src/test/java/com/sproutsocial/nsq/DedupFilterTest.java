@@ -0,0 +1,88 @@
+package com.sproutsocial.nsq;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class DedupFilterTest {
+
+    private final DedupFilter filter = new DedupFilter(10000, 0.01, null);
+
+    @Test
+    public void remembersPutKeys() {
+        Random random = new Random(1);
+        long[] hashes = new long[1000];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = random.nextLong();
+            filter.put(hashes[i]);
+        }
+        for (long hash : hashes) {
+            Assert.assertTrue(filter.mightContain(hash));
+        }
+    }
+
+    @Test
+    public void forgetsKeysAfterTwoRotations() {
+        filter.put(42);
+        filter.rotate();
+        Assert.assertTrue(filter.mightContain(42));
+        filter.rotate();
+        Assert.assertFalse(filter.mightContain(42));
+    }
+
+    @Test
+    public void falsePositiveRateNearTarget() {
+        Random random = new Random(2);
+        for (int i = 0; i < 10000; i++) {
+            filter.put(random.nextLong());
+        }
+        int falsePositives = 0;
+        int checks = 100000;
+        for (int i = 0; i < checks; i++) {
+            if (filter.mightContain(random.nextLong())) {
+                falsePositives++;
+            }
+        }
+        double rate = (double) falsePositives / checks;
+        Assert.assertTrue("false positive rate " + rate, rate < 0.02);
+    }
+
+    @Test
+    public void pendingKeyRejectsSecondHandler() {
+        int token = filter.startHandling(7);
+        Assert.assertTrue(token >= 0);
+        Assert.assertEquals(-1, filter.startHandling(7));
+        Assert.assertFalse(filter.mightContain(7));
+
+        filter.handled(7, token, true);
+        Assert.assertTrue(filter.mightContain(7));
+        Assert.assertEquals(0, filter.getPendingCount());
+    }
+
+    @Test
+    public void requeuedKeyIsNotRemembered() {
+        int token = filter.startHandling(7);
+        filter.handled(7, token, false);
+        Assert.assertFalse(filter.mightContain(7));
+        Assert.assertTrue(filter.startHandling(7) >= 0);
+    }
+
+    @Test
+    public void stalePendingKeysExpireOnRotation() {
+        int token = filter.startHandling(7);
+        filter.rotate();
+        Assert.assertEquals(1, filter.getPendingCount());
+        filter.rotate();
+        filter.rotate();
+        Assert.assertEquals(0, filter.getPendingCount());
+
+        //a late response from the stale handler does not clear the new marker
+        int newToken = filter.startHandling(7);
+        filter.handled(7, token, false);
+        Assert.assertEquals(1, filter.getPendingCount());
+        filter.handled(7, newToken, true);
+        Assert.assertEquals(0, filter.getPendingCount());
+    }
+
+}
@@ -0,0 +1,21 @@
+package com.sproutsocial.nsq;
+
+import org.junit.Test;
+
+public class EventsTest {
+
+    private final HostAndPort nsqd = HostAndPort.fromParts("localhost", 4150);
+
+    @Test
+    public void hooksDoNotThrowWithoutRecording() {
+        Events.endPublish(Events.beginPublish(), "PUB", "topic", nsqd, 1, 10, true);
+        Events.endFlush(Events.beginFlush(), nsqd, 3);
+        Events.endMessage(null, null, "FIN");
+        Events.beginMessage();
+        Events.rdy(nsqd, "topic", 5);
+        Events.heartbeat(nsqd);
+        Events.connection(nsqd, "connected");
+        Events.reconnect(nsqd, "topic", 1, 1000);
+    }
+
+}
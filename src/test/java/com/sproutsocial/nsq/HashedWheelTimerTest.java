@@ -0,0 +1,160 @@
+package com.sproutsocial.nsq;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class HashedWheelTimerTest {
+
+    private static final Executor DIRECT = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    //small wheel so 200ms is several rounds
+    private final HashedWheelTimer timer = new HashedWheelTimer(Util.threadFactory("test-timer"), DIRECT, 10, 8);
+
+    @After
+    public void teardown() {
+        timer.stop();
+    }
+
+    @Test
+    public void runsInDeadlineOrder() throws InterruptedException {
+        final List<Integer> order = new CopyOnWriteArrayList<>();
+        final CountDownLatch done = new CountDownLatch(4);
+        for (final int delay : new int[] {120, 30, 90, 60}) {
+            timer.schedule(new Runnable() {
+                public void run() {
+                    order.add(delay);
+                    done.countDown();
+                }
+            }, delay);
+        }
+        Assert.assertTrue(done.await(2, TimeUnit.SECONDS));
+        Assert.assertEquals(Arrays.asList(30, 60, 90, 120), order);
+    }
+
+    @Test
+    public void deadlineSeveralRoundsAway() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final long start = Util.clock();
+        final AtomicInteger elapsed = new AtomicInteger();
+        timer.schedule(new Runnable() {
+            public void run() {
+                elapsed.set((int) (Util.clock() - start));
+                done.countDown();
+            }
+        }, 200);
+        Assert.assertTrue(done.await(2, TimeUnit.SECONDS));
+        Assert.assertTrue("ran after:" + elapsed.get(), elapsed.get() >= 190);
+        Assert.assertTrue("ran after:" + elapsed.get(), elapsed.get() < 400);
+    }
+
+    @Test
+    public void cancelBeforeExpiry() {
+        final AtomicInteger runs = new AtomicInteger();
+        HashedWheelTimer.Timeout timeout = timer.schedule(new Runnable() {
+            public void run() {
+                runs.incrementAndGet();
+            }
+        }, 50);
+        Assert.assertTrue(timeout.isPending());
+        Assert.assertTrue(timeout.cancel());
+        Assert.assertFalse(timeout.cancel());
+        Assert.assertTrue(timeout.isCancelled());
+        Util.sleepQuietly(150);
+        Assert.assertEquals(0, runs.get());
+        Assert.assertFalse(timer.schedule(timeout, 10));
+    }
+
+    @Test
+    public void cancelAfterExpiryAndReschedule() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        HashedWheelTimer.Timeout timeout = timer.newTimeout(new Runnable() {
+            public void run() {
+                runs.incrementAndGet();
+            }
+        });
+        Assert.assertTrue(timer.schedule(timeout, 20));
+        Assert.assertFalse("already pending", timer.schedule(timeout, 20));
+        Util.sleepQuietly(100);
+        Assert.assertEquals(1, runs.get());
+        Assert.assertTrue("expired timeouts can be rescheduled", timer.schedule(timeout, 20));
+        Util.sleepQuietly(100);
+        Assert.assertEquals(2, runs.get());
+        Assert.assertTrue(timeout.cancel());
+        Assert.assertFalse(timer.schedule(timeout, 20));
+        Util.sleepQuietly(100);
+        Assert.assertEquals(2, runs.get());
+    }
+
+    @Test
+    public void periodicIsReinsertedUntilCancelled() {
+        final AtomicInteger runs = new AtomicInteger();
+        HashedWheelTimer.Timeout timeout = timer.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                runs.incrementAndGet();
+            }
+        }, 20, 20);
+        Util.sleepQuietly(230);
+        Assert.assertTrue(timeout.cancel());
+        int count = runs.get();
+        Assert.assertTrue("runs:" + count, count >= 8 && count <= 12);
+        Util.sleepQuietly(100);
+        Assert.assertEquals(count, runs.get());
+    }
+
+    @Test
+    public void periodicRescheduledWhileRunningIsInsertedOnce() {
+        final AtomicInteger runs = new AtomicInteger();
+        final HashedWheelTimer.Timeout[] self = new HashedWheelTimer.Timeout[1];
+        self[0] = timer.scheduleAtFixedRate(new Runnable() {
+            public void run() {
+                runs.incrementAndGet();
+                timer.schedule(self[0], 50);
+            }
+        }, 50, 50);
+        Util.sleepQuietly(520);
+        self[0].cancel();
+        int count = runs.get();
+        //a double insert would run twice per period
+        Assert.assertTrue("runs:" + count, count >= 8 && count <= 11);
+    }
+
+    @Test
+    public void stopDropsPendingAndRejectsScheduling() {
+        final AtomicInteger runs = new AtomicInteger();
+        Runnable task = new Runnable() {
+            public void run() {
+                runs.incrementAndGet();
+            }
+        };
+        HashedWheelTimer.Timeout timeout = timer.schedule(task, 50);
+        timer.scheduleAtFixedRate(task, 50, 50);
+        timer.stop();
+        Assert.assertTrue(timer.isStopped());
+        Assert.assertFalse(timeout.isPending());
+        Assert.assertFalse(timeout.isCancelled());
+        Util.sleepQuietly(150);
+        Assert.assertEquals(0, runs.get());
+        try {
+            timer.schedule(timeout, 10);
+            Assert.fail("scheduled on a stopped timer");
+        }
+        catch (RejectedExecutionException e) {
+            //expected
+        }
+    }
+
+}
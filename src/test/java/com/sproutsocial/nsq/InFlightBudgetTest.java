@@ -0,0 +1,79 @@
+package com.sproutsocial.nsq;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class InFlightBudgetTest {
+
+    private static int sum(int[] values) {
+        int total = 0;
+        for (int value : values) {
+            total += value;
+        }
+        return total;
+    }
+
+    @Test
+    public void busySubscriptionsSplitByWeight() {
+        int[] limit = InFlightBudget.allocate(100, new int[] {1000, 1000}, new int[] {3, 1}, new int[] {1000, 1000}, 0);
+        Assert.assertArrayEquals(new int[] {75, 25}, limit);
+    }
+
+    @Test
+    public void idleSubscriptionLendsItsShare() {
+        int[] limit = InFlightBudget.allocate(100, new int[] {5, 1000}, new int[] {1, 1}, new int[] {1000, 1000}, 0);
+        Assert.assertArrayEquals(new int[] {5, 95}, limit);
+    }
+
+    @Test
+    public void spareIsHeadroomCappedAtMax() {
+        int[] limit = InFlightBudget.allocate(100, new int[] {10, 10}, new int[] {1, 1}, new int[] {20, 1000}, 0);
+        Assert.assertArrayEquals(new int[] {20, 50}, limit);
+        Assert.assertTrue(sum(limit) <= 100);
+    }
+
+    @Test
+    public void remainderNeverExceedsBudget() {
+        int[] limit = InFlightBudget.allocate(10, new int[] {100, 100, 100}, new int[] {1, 1, 1}, new int[] {100, 100, 100}, 0);
+        Assert.assertEquals(10, sum(limit));
+        Assert.assertArrayEquals(new int[] {4, 3, 3}, limit);
+    }
+
+    @Test
+    public void moreSubscriptionsThanBudget() {
+        int[] demand = {100, 100, 100, 100, 100};
+        int[] weight = {1, 1, 1, 1, 1};
+        int[] max = {100, 100, 100, 100, 100};
+        int[] first = InFlightBudget.allocate(3, demand, weight, max, 0);
+        Assert.assertArrayEquals(new int[] {1, 1, 1, 0, 0}, first);
+        Assert.assertArrayEquals(first, InFlightBudget.allocate(3, demand, weight, max, 0));
+
+        //the subscriptions left out get their turn as the offset moves
+        Assert.assertArrayEquals(new int[] {1, 0, 0, 1, 1}, InFlightBudget.allocate(3, demand, weight, max, 3));
+    }
+
+    @Test
+    public void totalNeverExceedsBudget() {
+        Random random = new Random(3);
+        for (int round = 0; round < 10000; round++) {
+            int n = 1 + random.nextInt(8);
+            int budget = 1 + random.nextInt(50);
+            int[] demand = new int[n];
+            int[] weight = new int[n];
+            int[] max = new int[n];
+            for (int i = 0; i < n; i++) {
+                max[i] = 1 + random.nextInt(40);
+                demand[i] = 1 + random.nextInt(max[i]);
+                weight[i] = 1 + random.nextInt(5);
+            }
+            int[] limit = InFlightBudget.allocate(budget, demand, weight, max, round);
+            Assert.assertTrue(sum(limit) <= budget);
+            for (int i = 0; i < n; i++) {
+                Assert.assertTrue(limit[i] >= 0 && limit[i] <= Math.max(demand[i], max[i]));
+            }
+        }
+    }
+
+}
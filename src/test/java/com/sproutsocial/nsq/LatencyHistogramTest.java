@@ -0,0 +1,82 @@
+package com.sproutsocial.nsq;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallValuesHaveExactBuckets() {
+        for (int i = 0; i < 8; i++) {
+            Assert.assertEquals(i, LatencyHistogram.upperBound(LatencyHistogram.bucket(i)));
+        }
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        for (int bucket = 1; bucket <= LatencyHistogram.bucket(Long.MAX_VALUE); bucket++) {
+            long lower = LatencyHistogram.upperBound(bucket - 1) + 1;
+            Assert.assertEquals(bucket, LatencyHistogram.bucket(lower));
+            Assert.assertEquals(bucket, LatencyHistogram.bucket(LatencyHistogram.upperBound(bucket)));
+        }
+        Assert.assertEquals(Long.MAX_VALUE, LatencyHistogram.upperBound(LatencyHistogram.bucket(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void upperBoundIsAtMostQuarterHigh() {
+        Random random = new Random(5);
+        for (int i = 0; i < 100000; i++) {
+            long value = (random.nextLong() >>> 1) >>> random.nextInt(63);
+            long upper = LatencyHistogram.upperBound(LatencyHistogram.bucket(value));
+            Assert.assertTrue(value + " upper:" + upper, upper >= value);
+            Assert.assertTrue(value + " upper:" + upper, upper - value <= value / 4 + 1);
+        }
+    }
+
+    @Test
+    public void percentilesAreBucketUpperBounds() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.getPercentile(50));
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 1000);
+        }
+        Assert.assertEquals(100, histogram.getCount());
+        Assert.assertEquals(100000, histogram.getMax());
+        Assert.assertEquals(50500, histogram.getMean(), 0.001);
+        long p50 = histogram.getPercentile(50);
+        Assert.assertTrue("p50:" + p50, p50 >= 50000 && p50 <= 50000 * 1.25);
+        Assert.assertEquals(LatencyHistogram.upperBound(LatencyHistogram.bucket(50000)), p50);
+        //capped at the max recorded value, not the bucket upper bound
+        Assert.assertEquals(100000, histogram.getPercentile(100));
+        Assert.assertEquals(LatencyHistogram.upperBound(LatencyHistogram.bucket(1000)), histogram.getPercentile(0));
+    }
+
+    @Test
+    public void negativeRecordedAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        Assert.assertEquals(1, histogram.getCount());
+        Assert.assertEquals(0, histogram.getMax());
+        Assert.assertEquals(0, histogram.getPercentile(99));
+    }
+
+    @Test
+    public void snapshotMovesCountsAndResets() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(10);
+        histogram.record(20);
+        LatencyHistogram snapshot = histogram.snapshotAndReset();
+        Assert.assertEquals(2, snapshot.getCount());
+        Assert.assertEquals(20, snapshot.getMax());
+        Assert.assertEquals(15, snapshot.getMean(), 0.001);
+        Assert.assertEquals(0, histogram.getCount());
+        Assert.assertEquals(0, histogram.getPercentile(50));
+
+        histogram.record(7);
+        Assert.assertEquals(7, histogram.getPercentile(50));
+        Assert.assertEquals(2, snapshot.getCount());
+    }
+
+}
@@ -0,0 +1,102 @@
+package com.sproutsocial.nsq;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class PollingSubscriberDockerTestIT extends BaseDockerTestIT {
+    private PollingSubscriber subscriber;
+    private Publisher publisher;
+
+    @Override
+    public void setup() {
+        super.setup();
+        publisher = primaryOnlyPublisher();
+        subscriber = new PollingSubscriber(client, 1, 5, cluster.getLookupNode().getHttpHostAndPort().toString());
+    }
+
+    @Test
+    public void pollReceivesAllMessages() throws InterruptedException {
+        SubscriptionId subscriptionId = subscriber.subscribe(topic, "channelA", 10);
+        List<String> messages = messages(40, 40);
+        send(topic, messages, 0, 0, publisher);
+
+        List<NSQMessage> received = new ArrayList<>();
+        long deadline = Util.clock() + 15000;
+        while (received.size() < messages.size() && Util.clock() < deadline) {
+            List<Message> batch = subscriber.poll(subscriptionId, 7, 500, TimeUnit.MILLISECONDS);
+            Assert.assertTrue("batch larger than requested:" + batch.size(), batch.size() <= 7);
+            for (Message msg : batch) {
+                received.add((NSQMessage) msg);
+                msg.finish();
+            }
+        }
+        validateReceivedAllMessages(messages, received, true);
+    }
+
+    @Test
+    public void queueIsBoundedUntilFinished() throws InterruptedException {
+        SubscriptionId subscriptionId = subscriber.subscribe(topic, "channelA", 5);
+        List<String> messages = messages(30, 40);
+        send(topic, messages, 0, 0, publisher);
+
+        Util.sleepQuietly(3000);
+        Assert.assertEquals(5, subscriber.getQueueSize(subscriptionId));
+
+        List<Message> unfinished = subscriber.poll(subscriptionId, 3, 500, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(3, unfinished.size());
+        Util.sleepQuietly(1000);
+        //polled messages still hold their RDY credit
+        Assert.assertEquals(2, subscriber.getQueueSize(subscriptionId));
+
+        List<NSQMessage> received = new ArrayList<>();
+        for (Message msg : unfinished) {
+            received.add((NSQMessage) msg);
+            msg.finish();
+        }
+        long deadline = Util.clock() + 15000;
+        while (received.size() < messages.size() && Util.clock() < deadline) {
+            for (Message msg : subscriber.poll(subscriptionId, 100, 500, TimeUnit.MILLISECONDS)) {
+                received.add((NSQMessage) msg);
+                msg.finish();
+            }
+        }
+        validateReceivedAllMessages(messages, received, false);
+    }
+
+    @Test
+    public void handlerDeadlineStartsWhenPolled() throws InterruptedException {
+        subscriber.setHandlerDeadlineMillis(1000);
+        SubscriptionId subscriptionId = subscriber.subscribe(topic, "channelA", 5);
+        List<String> messages = messages(5, 40);
+        send(topic, messages, 0, 0, publisher);
+
+        //waiting in the queue past the deadline does not requeue
+        Util.sleepQuietly(3000);
+        Assert.assertEquals(5, subscriber.getQueueSize(subscriptionId));
+        List<Message> polled = subscriber.poll(subscriptionId, 5, 500, TimeUnit.MILLISECONDS);
+        Assert.assertEquals(5, polled.size());
+        for (Message msg : polled) {
+            Assert.assertEquals(1, msg.getAttempts());
+        }
+
+        //holding a polled message past the deadline does
+        Util.sleepQuietly(3000);
+        List<Message> redelivered = subscriber.poll(subscriptionId, 5, 5000, TimeUnit.MILLISECONDS);
+        Assert.assertFalse(redelivered.isEmpty());
+        for (Message msg : redelivered) {
+            Assert.assertEquals(2, msg.getAttempts());
+            msg.finish();
+        }
+    }
+
+    @Override
+    public void teardown() throws InterruptedException {
+        subscriber.stop();
+        publisher.stop();
+        super.teardown();
+    }
+}
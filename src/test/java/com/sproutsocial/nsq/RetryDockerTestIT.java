@@ -0,0 +1,121 @@
+package com.sproutsocial.nsq;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class RetryDockerTestIT extends BaseDockerTestIT {
+    private Subscriber subscriber;
+    private Publisher publisher;
+
+    @Override
+    public void setup() {
+        super.setup();
+        publisher = primaryOnlyPublisher();
+        subscriber = new Subscriber(client, 1, 5, cluster.getLookupNode().getHttpHostAndPort().toString());
+    }
+
+    @Test
+    public void poisonMessageRetriesWhileOthersFlow() {
+        final List<Message> failed = new CopyOnWriteArrayList<>();
+        subscriber.setFailedMessageHandler(new FailedMessageHandler() {
+            @Override
+            public void failed(String topic, String channel, Message msg) {
+                failed.add(msg);
+            }
+        });
+        final List<String> received = new CopyOnWriteArrayList<>();
+        final List<Integer> poisonAttempts = new CopyOnWriteArrayList<>();
+        subscriber.setRetryPolicy(new FixedScheduleRetryPolicy(500, 500));
+        subscriber.subscribe(topic, "channelA", new MessageDataHandler() {
+            @Override
+            public void accept(byte[] data) {
+                String msg = new String(data);
+                if (msg.startsWith("poison")) {
+                    poisonAttempts.add(poisonAttempts.size() + 1);
+                    throw new IllegalStateException("poison");
+                }
+                received.add(msg);
+            }
+        });
+
+        List<String> messages = messages(20, 40);
+        publisher.publish(topic, "poison".getBytes());
+        send(topic, messages, 0, 0, publisher);
+
+        long deadline = Util.clock() + 10000;
+        while ((received.size() < messages.size() || failed.isEmpty()) && Util.clock() < deadline) {
+            Util.sleepQuietly(50);
+        }
+        Assert.assertEquals(messages.size(), received.size());
+        Assert.assertEquals(3, poisonAttempts.size());
+        Assert.assertEquals(1, failed.size());
+        Assert.assertEquals(3, failed.get(0).getAttempts());
+    }
+
+    @Test
+    public void givenUpMessageIsDeadLettered() {
+        DeadLetterPublisher deadLetters = new DeadLetterPublisher(publisher);
+        deadLetters.setIncludeMetadata(true);
+        subscriber.setFailedMessageHandler(deadLetters);
+        subscriber.setRetryPolicy(new FixedScheduleRetryPolicy(100));
+        subscriber.subscribe(topic, "channelA", new MessageDataHandler() {
+            @Override
+            public void accept(byte[] data) {
+                throw new IllegalStateException("always fails");
+            }
+        });
+        TestMessageHandler dlqHandler = new TestMessageHandler();
+        subscriber.subscribe(topic + ".dlq", "channelA", dlqHandler);
+
+        publisher.publish(topic, "poison".getBytes());
+        List<NSQMessage> deadLettered = dlqHandler.drainMessagesOrTimeOut(1);
+        String envelope = new String(deadLettered.get(0).getData());
+        Assert.assertTrue(envelope, envelope.contains("\"attempts\":2"));
+        Assert.assertTrue(envelope, envelope.contains("always fails"));
+    }
+
+    @Test
+    public void fanOutRetriesOnlyFailedConsumer() {
+        final List<String> first = new CopyOnWriteArrayList<>();
+        final List<String> second = new CopyOnWriteArrayList<>();
+        FanOutHandler fanOut = new FanOutHandler(FanOutHandler.FailurePolicy.REQUEUE_FAILED, new FixedScheduleRetryPolicy(100, 100));
+        fanOut.addConsumer(new MessageDataHandler() {
+            @Override
+            public void accept(byte[] data) {
+                first.add(new String(data));
+            }
+        });
+        fanOut.addConsumer(new MessageDataHandler() {
+            @Override
+            public void accept(byte[] data) {
+                second.add(new String(data));
+                if (second.size() == 1) {
+                    throw new IllegalStateException("fails once");
+                }
+            }
+        });
+        subscriber.subscribe(topic, "channelA", 1, fanOut);
+
+        publisher.publish(topic, "fanout".getBytes());
+
+        long deadline = Util.clock() + 5000;
+        while (second.size() < 2 && Util.clock() < deadline) {
+            Util.sleepQuietly(50);
+        }
+        Util.sleepQuietly(500);
+        Assert.assertEquals(Collections.singletonList("fanout"), first);
+        Assert.assertEquals(Arrays.asList("fanout", "fanout"), second);
+    }
+
+    @Override
+    public void teardown() throws InterruptedException {
+        subscriber.stop();
+        publisher.stop();
+        super.teardown();
+    }
+}
@@ -0,0 +1,75 @@
+package com.sproutsocial.nsq;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+public class RetryPolicyTest {
+
+    private static Message attempt(int attempts) {
+        return new NSQMessage(0, attempts, "0123456789abcdef", new byte[0], "topic", null);
+    }
+
+    @Test
+    public void exponentialDoublesUpToMax() {
+        ExponentialRetryPolicy policy = new ExponentialRetryPolicy(100, 1000, 10);
+        int[] caps = {100, 200, 400, 800, 1000, 1000, 1000, 1000, 1000};
+        for (int attempts = 1; attempts <= caps.length; attempts++) {
+            int max = 0;
+            for (int i = 0; i < 2000; i++) {
+                int delay = policy.getRequeueDelay(attempt(attempts), null);
+                Assert.assertTrue("attempt:" + attempts + " delay:" + delay, delay >= 0 && delay <= caps[attempts - 1]);
+                max = Math.max(max, delay);
+            }
+            //full jitter spreads over the whole range
+            Assert.assertTrue("attempt:" + attempts + " max:" + max, max > caps[attempts - 1] * 0.9);
+        }
+    }
+
+    @Test
+    public void exponentialGivesUpAtMaxAttempts() {
+        ExponentialRetryPolicy policy = new ExponentialRetryPolicy(100, 1000, 3);
+        Assert.assertNotEquals(RetryPolicy.GIVE_UP, policy.getRequeueDelay(attempt(2), null));
+        Assert.assertEquals(RetryPolicy.GIVE_UP, policy.getRequeueDelay(attempt(3), null));
+        Assert.assertEquals(RetryPolicy.GIVE_UP, policy.getRequeueDelay(attempt(4), null));
+    }
+
+    @Test
+    public void exponentialDoesNotOverflow() {
+        ExponentialRetryPolicy policy = new ExponentialRetryPolicy(1000, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        for (int attempts = 1; attempts < 70000; attempts += 997) {
+            Assert.assertTrue(policy.getRequeueDelay(attempt(attempts), null) >= 0);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void exponentialRejectsInitAboveMax() {
+        new ExponentialRetryPolicy(2000, 1000, 3);
+    }
+
+    @Test
+    public void fixedScheduleFollowsDelaysThenGivesUp() {
+        FixedScheduleRetryPolicy policy = new FixedScheduleRetryPolicy(0, 1000, 60000);
+        Assert.assertEquals(0, policy.getRequeueDelay(attempt(1), null));
+        Assert.assertEquals(1000, policy.getRequeueDelay(attempt(2), null));
+        Assert.assertEquals(60000, policy.getRequeueDelay(attempt(3), null));
+        Assert.assertEquals(RetryPolicy.GIVE_UP, policy.getRequeueDelay(attempt(4), null));
+        Assert.assertEquals(RetryPolicy.GIVE_UP, new FixedScheduleRetryPolicy().getRequeueDelay(attempt(1), null));
+    }
+
+    @Test
+    public void classifyingPicksFirstMatchingType() {
+        ClassifyingRetryPolicy policy = new ClassifyingRetryPolicy(new FixedScheduleRetryPolicy(5))
+                .on(TimeoutException.class, new FixedScheduleRetryPolicy(10))
+                .on(IllegalArgumentException.class, ClassifyingRetryPolicy.NO_RETRY)
+                .on(RuntimeException.class, new FixedScheduleRetryPolicy(20));
+        Assert.assertEquals(10, policy.getRequeueDelay(attempt(1), new TimeoutException()));
+        Assert.assertEquals(RetryPolicy.GIVE_UP, policy.getRequeueDelay(attempt(1), new NumberFormatException()));
+        Assert.assertEquals(20, policy.getRequeueDelay(attempt(1), new IllegalStateException()));
+        Assert.assertEquals(5, policy.getRequeueDelay(attempt(1), new IOException()));
+        Assert.assertEquals(5, policy.getRequeueDelay(attempt(1), null));
+    }
+
+}
@@ -6,9 +6,22 @@ import org.junit.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.lang.management.ManagementFactory;
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class SubscriberFocusedDockerTestIT extends BaseDockerTestIT {
@@ -89,6 +102,145 @@ public class SubscriberFocusedDockerTestIT extends BaseDockerTestIT {
         Assert.assertEquals(20, consumerMessages.size());
     }
 
+    @Test
+    public void sameTopicAndChannelShareSubscription() {
+        TestMessageHandler handler1 = new TestMessageHandler();
+        TestMessageHandler handler2 = new TestMessageHandler();
+        Subscriber subscriber = new Subscriber(client, 1, 10, cluster.getLookupNode().getHttpHostAndPort().toString());
+        subscribers.add(subscriber);
+        SubscriptionId id1 = subscriber.subscribe(topic, "channelA", 5, handler1);
+        SubscriptionId id2 = subscriber.subscribe(topic, "channelA", 5, handler2);
+        List<String> batch1 = messages(20, 40);
+
+        send(topic, batch1, 0, 0, publisher);
+
+        Util.sleepQuietly(3000);
+        List<NSQMessage> combined = new ArrayList<>(handler1.drainMessages(20));
+        Assert.assertFalse(combined.isEmpty());
+        List<NSQMessage> secondMessages = handler2.drainMessages(20);
+        Assert.assertFalse(secondMessages.isEmpty());
+        combined.addAll(secondMessages);
+        validateReceivedAllMessages(batch1, combined, false);
+
+        Subscription shared = subscriber.unsubscribeSubscription(id1);
+        Assert.assertEquals(1, shared.getHandleCount());
+        Assert.assertEquals(5, shared.getMaxInFlight());
+        Assert.assertTrue(shared.getConnectionCount() > 0);
+        List<String> batch2 = messages(20, 40);
+        send(topic, batch2, 0, 0, publisher);
+        validateReceivedAllMessages(batch2, handler2.drainMessagesOrTimeOut(20), false);
+        Assert.assertTrue(subscriber.unsubscribe(id2));
+    }
+
+    @Test
+    public void drainedSharedSubscriptionStaysDrained() {
+        Subscriber subscriber = new Subscriber(client, 1, 10, cluster.getLookupNode().getHttpHostAndPort().toString());
+        subscribers.add(subscriber);
+        SubscriptionId id1 = subscriber.subscribe(topic, "channelA", 5, new TestMessageHandler());
+        SubscriptionId id2 = subscriber.subscribe(topic, "channelA", 5, new TestMessageHandler());
+        subscriber.drainInFlight();
+
+        Subscription drained = subscriber.unsubscribeSubscription(id1);
+        Assert.assertEquals(1, drained.getHandleCount());
+        Assert.assertEquals(0, drained.getMaxInFlight());
+
+        SubscriptionId id3 = subscriber.subscribe(topic, "channelA", 5, new TestMessageHandler());
+        Assert.assertEquals(1, drained.getHandleCount());
+        Assert.assertEquals(0, drained.getMaxInFlight());
+        Subscription fresh = subscriber.unsubscribeSubscription(id3);
+        Assert.assertNotSame(drained, fresh);
+        Assert.assertEquals(5, fresh.getMaxInFlight());
+        Assert.assertTrue(subscriber.unsubscribe(id2));
+    }
+
+    @Test
+    public void subscribeAndSetMaxInFlightWhileLookupsComplete() throws Exception {
+        Subscriber subscriber = new Subscriber(client, 1, 10, cluster.getLookupNode().getHttpHostAndPort().toString());
+        subscribers.add(subscriber);
+        subscriber.subscribe(topic, "channelA", 10, new TestMessageHandler());
+        send(topic, messages(5, 40), 0, 0, publisher);
+        final Subscriber sub = subscriber;
+        final long end = Util.clock() + 5000;
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            //lookups complete every second and after each subscribe, connects complete on the connect executor
+            Future<?> resizing = pool.submit(new Runnable() {
+                public void run() {
+                    for (int i = 0; Util.clock() < end; i++) {
+                        sub.setMaxInFlight(topic, "channelA", 1 + i % 20);
+                    }
+                }
+            });
+            Future<?> subscribing = pool.submit(new Runnable() {
+                public void run() {
+                    while (Util.clock() < end) {
+                        SubscriptionId id = sub.subscribe(topic, "channelB", 5, new TestMessageHandler());
+                        Util.sleepQuietly(20);
+                        sub.unsubscribe(id);
+                    }
+                }
+            });
+            try {
+                resizing.get(20, TimeUnit.SECONDS);
+                subscribing.get(20, TimeUnit.SECONDS);
+            }
+            catch (TimeoutException e) {
+                Assert.fail("deadlocked threads:" + Arrays.toString(ManagementFactory.getThreadMXBean().findDeadlockedThreads()));
+            }
+            Assert.assertNull(ManagementFactory.getThreadMXBean().findDeadlockedThreads());
+        }
+        finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void latencyListenerReportsHistograms() {
+        final List<LatencyStats> reports = new CopyOnWriteArrayList<>();
+        final List<Message> slow = new CopyOnWriteArrayList<>();
+        TestMessageHandler handler = new TestMessageHandler() {
+            @Override
+            public void accept(Message msg) {
+                Util.sleepQuietly(20);
+                super.accept(msg);
+            }
+        };
+        Subscriber subscriber = new Subscriber(client, 1, 10, cluster.getLookupNode().getHttpHostAndPort().toString());
+        subscribers.add(subscriber);
+        subscriber.setLatencyListener(new LatencyListener() {
+            @Override
+            public void report(String topic, String channel, LatencyStats stats) {
+                reports.add(stats);
+            }
+
+            @Override
+            public void slowMessage(String topic, String channel, Message msg, long lagMicros, long queueWaitMicros, long handlerMicros) {
+                slow.add(msg);
+            }
+        }, 1);
+        subscriber.setSlowMessageSampling(10, 3);
+        subscriber.subscribe(topic, "channelA", 10, handler);
+        List<String> messages = messages(20, 40);
+
+        send(topic, messages, 0, 0, publisher);
+        handler.drainMessagesOrTimeOut(20);
+        Util.sleepQuietly(1500);
+
+        long received = 0;
+        long handled = 0;
+        for (LatencyStats stats : reports) {
+            received += stats.getLag().getCount();
+            handled += stats.getHandler().getCount();
+            if (stats.getHandler().getCount() > 0) {
+                Assert.assertTrue(stats.toString(), stats.getHandler().getPercentile(50) >= 20000);
+            }
+        }
+        Assert.assertEquals(20, received);
+        Assert.assertEquals(20, handled);
+        Assert.assertFalse(slow.isEmpty());
+        Assert.assertTrue(slow.size() <= 3 * reports.size());
+    }
+
     // A message handler that deliberately processes messages "forever", to simulate
     // in-flight message handling.
     private static class HangingMessageHandler implements MessageHandler {
@@ -188,6 +340,190 @@ public class SubscriberFocusedDockerTestIT extends BaseDockerTestIT {
         validateReceivedAllMessages(messages, firstConsumerMessages, false);
     }
 
+    @Test
+    public void messageFilterFinishesRejectedMessages() {
+        TestMessageHandler handler = new TestMessageHandler();
+        Subscriber subscriber = new Subscriber(client, 1, 10, cluster.getLookupNode().getHttpHostAndPort().toString());
+        subscribers.add(subscriber);
+        subscriber.getConfig().setMsgTimeout(2000);
+        subscriber.setMessageFilter(new MessageFilter() {
+            @Override
+            public boolean accept(byte[] data, int offset, int length) {
+                return length > 0 && data[offset] == 'k';
+            }
+        });
+        subscriber.subscribe(topic, "channelA", 10, handler);
+        List<String> kept = new ArrayList<>();
+        List<String> all = new ArrayList<>();
+        for (String msg : messages(20, 40)) {
+            String tagged = (kept.size() * 2 < all.size() ? "keep-" : "drop-") + msg;
+            if (tagged.startsWith("keep-")) {
+                kept.add(tagged);
+            }
+            all.add(tagged);
+        }
+
+        send(topic, all, 0, 0, publisher);
+
+        validateReceivedAllMessages(kept, handler.drainMessagesOrTimeOut(kept.size()), false);
+        //rejected messages that were not finished would be redelivered after the 2 second msgTimeout
+        Util.sleepQuietly(5000);
+        Assert.assertTrue(handler.drainMessages(all.size()).isEmpty());
+        long filtered = 0;
+        for (SubConnection con : subscriber.getConnections(topic, "channelA").values()) {
+            filtered += con.getFilteredCount();
+        }
+        Assert.assertEquals(all.size() - kept.size(), filtered);
+    }
+
+    @Test
+    public void inlineDispatchRunsOnReadThreadAndFlushesAcks() {
+        final List<String> threadNames = new CopyOnWriteArrayList<>();
+        TestMessageHandler handler = new TestMessageHandler() {
+            @Override
+            public void accept(Message msg) {
+                threadNames.add(Thread.currentThread().getName());
+                receivedMessages.add((NSQMessage) msg);
+                msg.finish(); //no forceFlush, the read thread flushes once it has caught up
+            }
+        };
+        Subscriber subscriber = new Subscriber(client, 1, 10, cluster.getLookupNode().getHttpHostAndPort().toString());
+        subscribers.add(subscriber);
+        subscriber.setMaxFlushDelayMillis(30000);
+        //RDY 60 split over up to 3 nsqds batches at least 6 acks per connection, 5 messages are only flushed by
+        //the read thread or the flush timer
+        subscriber.subscribe(topic, "channelA", 60, handler, true);
+        List<String> messages = messages(5, 40);
+
+        send(topic, messages, 0, 0, publisher);
+
+        List<NSQMessage> received = handler.drainMessagesOrTimeOut(5, 8000);
+        validateReceivedAllMessages(messages, received, false);
+        for (String threadName : threadNames) {
+            Assert.assertTrue(threadName, threadName.startsWith("nsq-read"));
+        }
+        //the flush timer runs every 15 seconds, the acks must be written long before that
+        long deadline = Util.clock() + 1000;
+        int unflushed = -1;
+        while (unflushed != 0 && Util.clock() < deadline) {
+            unflushed = 0;
+            for (SubConnection con : subscriber.getConnections(topic, "channelA").values()) {
+                synchronized (con) {
+                    unflushed += con.unflushedCount;
+                }
+            }
+            Util.sleepQuietly(50);
+        }
+        Assert.assertEquals(0, unflushed);
+    }
+
+    @Test
+    public void partitionedDispatchKeepsKeyOrder() {
+        final Map<String, Integer> lastSeq = new ConcurrentHashMap<>();
+        final Set<String> active = ConcurrentHashMap.newKeySet();
+        final List<String> errors = new CopyOnWriteArrayList<>();
+        TestMessageHandler handler = new TestMessageHandler() {
+            @Override
+            public void accept(Message msg) {
+                String[] parts = new String(msg.getData()).split(":");
+                if (!active.add(parts[0])) {
+                    errors.add("concurrent key:" + parts[0]);
+                }
+                Util.sleepQuietly(5);
+                Integer prev = lastSeq.put(parts[0], Integer.valueOf(parts[1]));
+                if (prev != null && prev > Integer.valueOf(parts[1])) {
+                    errors.add("out of order key:" + parts[0] + " " + prev + " then " + parts[1]);
+                }
+                active.remove(parts[0]);
+                super.accept(msg);
+            }
+        };
+        Subscriber subscriber = new Subscriber(client, 1, 10, cluster.getLookupNode().getHttpHostAndPort().toString());
+        subscribers.add(subscriber);
+        subscriber.setPartitionedDispatch(4, new PartitionKeyExtractor() {
+            @Override
+            public Object getKey(Message msg) {
+                return new String(msg.getData()).split(":")[0];
+            }
+        });
+        subscriber.subscribe(topic, "channelA", 50, handler);
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            messages.add("key" + (i % 8) + ":" + i);
+        }
+
+        send(topic, messages, 0, 0, publisher);
+
+        List<NSQMessage> received = handler.drainMessagesOrTimeOut(200, 20000);
+        validateReceivedAllMessages(messages, received, false);
+        Assert.assertEquals(Collections.emptyList(), errors);
+    }
+
+    @Test
+    public void fullLaneThrottlesAndReleasesAfterDraining() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Map<String, Integer> lastSeq = new ConcurrentHashMap<>();
+        final List<String> errors = new CopyOnWriteArrayList<>();
+        TestMessageHandler handler = new TestMessageHandler() {
+            @Override
+            public void accept(Message msg) {
+                String[] parts = new String(msg.getData()).split(":");
+                if (parts[0].equals("hot")) {
+                    try {
+                        release.await();
+                    }
+                    catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                Integer prev = lastSeq.put(parts[0], Integer.valueOf(parts[1]));
+                if (prev != null && prev > Integer.valueOf(parts[1])) {
+                    errors.add("out of order key:" + parts[0] + " " + prev + " then " + parts[1]);
+                }
+                super.accept(msg);
+            }
+        };
+        Subscriber subscriber = new Subscriber(client, 1, 10, cluster.getLookupNode().getHttpHostAndPort().toString());
+        subscribers.add(subscriber);
+        subscriber.setMaxLaneDepth(10);
+        subscriber.setPartitionedDispatch(4, new PartitionKeyExtractor() {
+            @Override
+            public Object getKey(Message msg) {
+                return new String(msg.getData()).split(":")[0];
+            }
+        });
+        subscriber.subscribe(topic, "channelA", 50, handler);
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            messages.add("hot:" + i);
+        }
+        send(topic, messages, 0, 0, publisher);
+
+        //the hot lane fills and the subscription is held at what is in flight, not paused
+        Subscription subscription = null;
+        long deadline = Util.clock() + 10000;
+        while (Util.clock() < deadline) {
+            for (SubConnection con : subscriber.getConnections(topic, "channelA").values()) {
+                subscription = con.getSubscription();
+            }
+            if (subscription != null && subscription.getEffectiveMaxInFlight() < 50) {
+                break;
+            }
+            Util.sleepQuietly(50);
+        }
+        Assert.assertNotNull(subscription);
+        int throttled = subscription.getEffectiveMaxInFlight();
+        Assert.assertTrue("throttled to:" + throttled, throttled >= 10 && throttled < 50);
+        Util.sleepQuietly(500);
+        Assert.assertTrue(subscription.getInFlightCount() <= throttled);
+
+        release.countDown();
+        List<NSQMessage> received = handler.drainMessagesOrTimeOut(100, 20000);
+        validateReceivedAllMessages(messages, received, false);
+        Assert.assertEquals(Collections.emptyList(), errors);
+        Assert.assertEquals(50, subscription.getEffectiveMaxInFlight());
+    }
+
     @Override
     public void teardown() throws InterruptedException {
         if (publisher != null) {
@@ -0,0 +1,86 @@
+package com.sproutsocial.nsq;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Random;
+
+public class SubscriptionAllocateTest {
+
+    private static int sum(int[] values) {
+        int total = 0;
+        for (int value : values) {
+            total += value;
+        }
+        return total;
+    }
+
+    @Test
+    public void splitsByWeight() {
+        int[] rdy = Subscription.allocate(100, new int[] {2500, 2500, 2500}, new double[] {2, 1, 1});
+        Assert.assertArrayEquals(new int[] {50, 25, 25}, rdy);
+    }
+
+    @Test
+    public void conservesBudget() {
+        int[] rdy = Subscription.allocate(10, new int[] {2500, 2500, 2500}, new double[] {1, 1, 1});
+        Assert.assertEquals(10, sum(rdy));
+        Assert.assertArrayEquals(new int[] {4, 3, 3}, rdy);
+    }
+
+    @Test
+    public void capsAtMaxRdyAndSplitsTheRest() {
+        int[] rdy = Subscription.allocate(100, new int[] {10, 2500, 2500}, new double[] {10, 1, 1});
+        Assert.assertArrayEquals(new int[] {10, 45, 45}, rdy);
+    }
+
+    @Test
+    public void allCappedLeavesBudgetUnused() {
+        int[] rdy = Subscription.allocate(100, new int[] {5, 10}, new double[] {1, 1});
+        Assert.assertArrayEquals(new int[] {5, 10}, rdy);
+    }
+
+    @Test
+    public void lightConnectionGetsAtLeastOne() {
+        int[] rdy = Subscription.allocate(10, new int[] {2500, 2500}, new double[] {1000, 1});
+        Assert.assertArrayEquals(new int[] {9, 1}, rdy);
+    }
+
+    @Test
+    public void zeroMaxRdyGetsNothing() {
+        int[] rdy = Subscription.allocate(10, new int[] {0, 2500}, new double[] {1, 1});
+        Assert.assertArrayEquals(new int[] {0, 10}, rdy);
+    }
+
+    @Test
+    public void budgetLessThanConnections() {
+        int[] rdy = Subscription.allocate(2, new int[] {2500, 2500, 2500, 2500}, new double[] {1, 4, 1, 3});
+        Assert.assertEquals(2, sum(rdy));
+        Assert.assertArrayEquals(new int[] {0, 1, 0, 1}, rdy);
+
+        Assert.assertArrayEquals(new int[] {0, 0}, Subscription.allocate(0, new int[] {2500, 2500}, new double[] {1, 1}));
+    }
+
+    @Test
+    public void neverExceedsBudgetOrMaxRdy() {
+        Random random = new Random(4);
+        for (int round = 0; round < 10000; round++) {
+            int n = 1 + random.nextInt(10);
+            int budget = random.nextInt(60);
+            int[] maxRdy = new int[n];
+            double[] weights = new double[n];
+            int totalMax = 0;
+            for (int i = 0; i < n; i++) {
+                maxRdy[i] = random.nextInt(20);
+                weights[i] = 1 + random.nextDouble() * 10;
+                totalMax += maxRdy[i];
+            }
+            int[] rdy = Subscription.allocate(budget, maxRdy, weights);
+            Assert.assertEquals(Math.min(budget, totalMax), sum(rdy));
+            for (int i = 0; i < n; i++) {
+                Assert.assertTrue(rdy[i] >= 0 && rdy[i] <= maxRdy[i]);
+            }
+        }
+    }
+
+}
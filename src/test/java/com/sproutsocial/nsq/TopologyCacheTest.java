@@ -0,0 +1,83 @@
+package com.sproutsocial.nsq;
+
+import com.google.gson.Gson;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+public class TopologyCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Gson gson = new Gson();
+
+    private static Set<HostAndPort> hosts(String... hosts) {
+        Set<HostAndPort> set = new HashSet<HostAndPort>();
+        for (String host : hosts) {
+            set.add(HostAndPort.fromString(host));
+        }
+        return set;
+    }
+
+    @Test
+    public void missingFileStartsEmpty() {
+        TopologyCache cache = new TopologyCache(folder.getRoot().toPath().resolve("topology.json"), gson);
+        Assert.assertEquals(Collections.emptySet(), cache.get("topic"));
+    }
+
+    @Test
+    public void writtenProducersAreReadBack() {
+        Path file = folder.getRoot().toPath().resolve("topology.json");
+        TopologyCache cache = new TopologyCache(file, gson);
+        cache.put("topicA", hosts("nsqd1:4150", "nsqd2:4150"));
+        cache.put("topicB", hosts("nsqd3:4150"));
+        Assert.assertTrue(Files.exists(file));
+        Assert.assertFalse(Files.exists(file.resolveSibling("topology.json.tmp")));
+
+        TopologyCache reloaded = new TopologyCache(file, gson);
+        Assert.assertEquals(hosts("nsqd1:4150", "nsqd2:4150"), reloaded.get("topicA"));
+        Assert.assertEquals(hosts("nsqd3:4150"), reloaded.get("topicB"));
+        Assert.assertEquals(Collections.emptySet(), reloaded.get("topicC"));
+    }
+
+    @Test
+    public void lookupReplacesStaleProducers() {
+        Path file = folder.getRoot().toPath().resolve("topology.json");
+        TopologyCache cache = new TopologyCache(file, gson);
+        cache.put("topicA", hosts("nsqd1:4150", "nsqd2:4150"));
+        cache.put("topicA", hosts("nsqd2:4150", "nsqd4:4150"));
+        Assert.assertEquals(hosts("nsqd2:4150", "nsqd4:4150"), cache.get("topicA"));
+        Assert.assertEquals(hosts("nsqd2:4150", "nsqd4:4150"), new TopologyCache(file, gson).get("topicA"));
+    }
+
+    @Test
+    public void unchangedProducersDoNotRewrite() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("topology.json");
+        TopologyCache cache = new TopologyCache(file, gson);
+        cache.put("topicA", hosts("nsqd1:4150", "nsqd2:4150"));
+        Files.delete(file);
+        cache.put("topicA", hosts("nsqd2:4150", "nsqd1:4150"));
+        Assert.assertFalse(Files.exists(file));
+    }
+
+    @Test
+    public void corruptFileIsIgnored() throws IOException {
+        Path file = folder.getRoot().toPath().resolve("topology.json");
+        Files.write(file, Arrays.asList("{not json"), Util.UTF_8);
+        TopologyCache cache = new TopologyCache(file, gson);
+        Assert.assertEquals(Collections.emptySet(), cache.get("topicA"));
+        cache.put("topicA", hosts("nsqd1:4150"));
+        Assert.assertEquals(hosts("nsqd1:4150"), new TopologyCache(file, gson).get("topicA"));
+    }
+
+}
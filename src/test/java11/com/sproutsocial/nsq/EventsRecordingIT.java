@@ -0,0 +1,57 @@
+package com.sproutsocial.nsq;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+public class EventsRecordingIT {
+
+    @Test
+    public void commitsEnabledEvents() throws Exception {
+        Path file = Files.createTempFile("nsq-events", ".jfr");
+        try {
+            HostAndPort nsqd = HostAndPort.fromParts("localhost", 4150);
+            try (Recording recording = new Recording()) {
+                recording.enable("com.sproutsocial.nsq.Connection");
+                recording.enable("com.sproutsocial.nsq.Rdy");
+                recording.disable("com.sproutsocial.nsq.Heartbeat");
+                recording.start();
+                Events.connection(nsqd, "connected");
+                Events.rdy(nsqd, "topic", 5);
+                Events.heartbeat(nsqd); //disabled, not committed
+                recording.stop();
+                recording.dump(file);
+            }
+            int connectionEvents = 0;
+            int rdyEvents = 0;
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            for (RecordedEvent event : events) {
+                String name = event.getEventType().getName();
+                if (name.equals("com.sproutsocial.nsq.Connection")) {
+                    Assert.assertEquals("connected", event.getString("state"));
+                    Assert.assertEquals(nsqd.toString(), event.getString("nsqd"));
+                    connectionEvents++;
+                }
+                else if (name.equals("com.sproutsocial.nsq.Rdy")) {
+                    Assert.assertEquals(5, event.getInt("rdy"));
+                    rdyEvents++;
+                }
+                else {
+                    Assert.assertFalse(name, name.equals("com.sproutsocial.nsq.Heartbeat"));
+                }
+            }
+            Assert.assertEquals(1, connectionEvents);
+            Assert.assertEquals(1, rdyEvents);
+        }
+        finally {
+            Files.delete(file);
+        }
+    }
+
+}